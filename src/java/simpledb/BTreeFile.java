@@ -195,7 +195,23 @@ public class BTreeFile implements DbFile {
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry entry = null;
+		while(it.hasNext()) {
+			entry = it.next();
+			// 第一个键不小于f的条目，它的左孩子是最左边可能包含f的子树
+			if(f == null || entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+				return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
+			}
+		}
+		if(entry == null) {
+			throw new DbException("internal page " + pid + " has no entries");
+		}
+		return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
 	}
 	
 	/**
@@ -247,8 +263,36 @@ public class BTreeFile implements DbFile {
 		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
 		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
 		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// 先取出后一半元组，再从原页面移到新页面
+		int moveCount = page.getNumTuples() / 2;
+		Tuple[] moving = new Tuple[moveCount];
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = moveCount - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+		Field midKey = moving[0].getField(keyField);
+
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midKey);
+		parent.insertEntry(new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, midKey) ? newPage : page;
 	}
 	
 	/**
@@ -285,7 +329,33 @@ public class BTreeFile implements DbFile {
 		// the parent pointers of all the children moving to the new page.  updateParentPointers()
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// 后一半条目移到新页面，它们前面的一个条目推到父页面
+		int moveCount = page.getNumEntries() / 2;
+		BTreeEntry[] moving = new BTreeEntry[moveCount];
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = moveCount - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		BTreeEntry mid = it.next();
+		for(int i = moveCount - 1; i >= 0; i--) {
+			page.deleteKeyAndRightChild(moving[i]);
+		}
+		for(BTreeEntry e : moving) {
+			newPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(mid);
+
+		mid.setLeftChild(page.getId());
+		mid.setRightChild(newPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid.getKey());
+		parent.insertEntry(mid);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+		updateParentPointers(tid, dirtypages, newPage);
+
+		return field.compare(Op.GREATER_THAN, mid.getKey()) ? newPage : page;
 	}
 	
 	/**
@@ -415,7 +485,7 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			Page p = Database.getBufferPool().getPage(tid, pid, perm, getPriority(pid));
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
 			}
@@ -423,6 +493,21 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Leaf pages compete with heap pages in the buffer pool, while the root pointer,
+	 * internal and header pages are walked by every lookup and are kept resident
+	 * with high priority.
+	 * 
+	 * @param pid - the id of the page being fetched
+	 * @return the buffer pool replacement priority of the page
+	 */
+	static BufferPool.Priority getPriority(BTreePageId pid) {
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return BufferPool.Priority.NORMAL;
+		}
+		return BufferPool.Priority.HIGH;
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -1097,7 +1182,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void open() throws DbException, TransactionAbortedException {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY, BufferPool.Priority.HIGH);
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		it = curp.iterator();
@@ -1182,7 +1267,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void open() throws DbException, TransactionAbortedException {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY, BufferPool.Priority.HIGH);
 		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
@@ -3,8 +3,11 @@ package simpledb;
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -15,11 +18,77 @@ import java.util.concurrent.ConcurrentHashMap;
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
  * 
- * @Threadsafe, all fields are final
+ * The capacity of the pool can be changed at runtime with {@link #resize}.
+ * <p>
+ * With tuple locking enabled ({@link #setTupleLocking}), transactions that
+ * insert or delete heap tuples lock only the tuples they change, so several
+ * of them can modify one page at a time.  Such a page cannot simply be
+ * discarded when one of them aborts, so the pool keeps a per-transaction
+ * list of tuple changes: an abort undoes its own changes in place, and
+ * writing the page out (at commit, or by flushPage) writes an image with the
+ * changes of the other running transactions undone, so disk never sees
+ * uncommitted data.
+ * <p>
+ * With snapshot isolation enabled ({@link #setSnapshotIsolation}), a
+ * transaction started with {@link #beginSnapshot} reads the database as of
+ * the last commit before it began, from the {@link PageVersionStore}, and
+ * takes no locks at all; readers and writers never block each other.
+ * <p>
+ * A transaction started with {@link #beginOptimistic} runs under optimistic
+ * concurrency control instead of locking: it works on private copies of the
+ * pages it touches (see {@link OptimisticTransactions}) and is validated
+ * when it commits with {@link #commitOptimistic}.
+ * <p>
+ * Operations that change which pages are resident, or write them to disk,
+ * are serialized by the pool's latch (see {@link #getLatch}), an explicit
+ * lock rather than the object's monitor so that a virtual thread blocked
+ * on it or doing I/O under it does not pin its carrier thread.
+ * 
+ * @Threadsafe
  */
 public class BufferPool {
-    private final int numPages;
+    /**
+     * Replacement priority of a resident page.  NORMAL pages are always
+     * evicted before HIGH pages, so index pages that every lookup walks
+     * through (B+ tree root pointer, internal and header pages) stay
+     * resident while leaf and heap pages come and go.
+     */
+    public enum Priority {
+        HIGH, NORMAL
+    }
+
+    private volatile int numPages;
+    private final ReentrantLock latch = new ReentrantLock();
     private final Map<PageId, Page> bufferMap_PageIDtoPage;
+    private final Map<PageId, Priority> pagePriority;
+    private final CompressedPageCache compressedCache;
+    private volatile boolean tupleLocking = false;
+    private volatile boolean snapshotIsolation = false;
+    private final PageVersionStore versions;
+    private final OptimisticTransactions optimistic;
+    //声明为只读、但不在快照下运行的事务
+    private final Set<TransactionId> readOnly;
+    //tid -> (pid -> 该事务在该页面上按顺序做的元组修改)，列表由页面对象的monitor保护
+    private final Map<TransactionId, Map<PageId, List<TupleChange>>> tupleChanges;
+    //pid -> 在该页面上有未提交的元组修改的事务
+    private final Map<PageId, Set<TransactionId>> tupleWriters;
+
+    /** One tuple inserted or deleted under a tuple lock, kept until its transaction ends */
+    private static class TupleChange {
+        final Tuple tuple;
+        final boolean inserted;
+
+        TupleChange(Tuple tuple, boolean inserted) {
+            this.tuple = tuple;
+            this.inserted = inserted;
+        }
+
+        //在page上撤销这个修改
+        void undo(HeapPage page) throws DbException {
+            if(inserted) page.deleteTuple(tuple);
+            else page.insertTuple(tuple, tuple.getRecordId().getTupleNumber());
+        }
+    }
 
     /** Bytes per page, including header. */
     private static final int DEFAULT_PAGE_SIZE = 4096;
@@ -31,6 +100,10 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Default number of evicted pages kept compressed in memory; the second
+    tier is off unless enabled with setCompressedCacheCapacity. */
+    public static final int DEFAULT_COMPRESSED_PAGES = 0;
+
 
 
     /**
@@ -42,8 +115,180 @@ public class BufferPool {
         // some code goes here
         this.numPages = numPages;
         bufferMap_PageIDtoPage = new ConcurrentHashMap<>();
+        pagePriority = new ConcurrentHashMap<>();
+        compressedCache = new CompressedPageCache(DEFAULT_COMPRESSED_PAGES);
+        tupleChanges = new ConcurrentHashMap<>();
+        tupleWriters = new ConcurrentHashMap<>();
+        versions = new PageVersionStore(numPages);
+        optimistic = new OptimisticTransactions();
+        readOnly = ConcurrentHashMap.newKeySet();
     }
     
+    /**
+     * @return the maximum number of pages this buffer pool currently caches.
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * Returns the latch serializing eviction and writes of this pool.
+     * Callers that also need the log's latch must take this one first.
+     */
+    public ReentrantLock getLatch() {
+        return latch;
+    }
+
+    /**
+     * @return the number of pages currently resident in this buffer pool.
+     */
+    public int getNumResidentPages() {
+        return bufferMap_PageIDtoPage.size();
+    }
+
+    /**
+     * @return the number of resident pages of the given priority class.
+     */
+    public int getNumResidentPages(Priority priority) {
+        int ans = 0;
+        for(PageId pid: bufferMap_PageIDtoPage.keySet()){
+            if(getPriority(pid) == priority) ans++;
+        }
+        return ans;
+    }
+
+    private Priority getPriority(PageId pid) {
+        return pagePriority.getOrDefault(pid, Priority.NORMAL);
+    }
+
+    /**
+     * Changes the capacity of this buffer pool without discarding its
+     * contents.
+     * <p>
+     * Growing the pool only raises the limit.  Shrinking evicts pages through
+     * the normal replacement policy until the pool fits; since dirty pages
+     * may not be evicted (NO STEAL), the pool may temporarily stay above the
+     * new limit, in which case later calls to getPage keep evicting until it
+     * fits.  No locks are taken and no running transaction is blocked.
+     *
+     * @param newNumPages the new maximum number of pages, must be positive
+     */
+    public void resize(int newNumPages) {
+        latch.lock();
+        try {
+            if(newNumPages <= 0) throw new IllegalArgumentException("buffer pool must hold at least one page");
+            this.numPages = newNumPages;
+            //缩小时尽量淘汰页面，剩下的只有脏页时先超出上限，之后getPage时再淘汰
+            while(bufferMap_PageIDtoPage.size() > numPages){
+                if(!tryEvictPage()) break;
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * @return the second-tier cache holding compressed copies of evicted
+     *     clean pages
+     */
+    public CompressedPageCache getCompressedCache() {
+        return compressedCache;
+    }
+
+    /**
+     * Sets how many evicted clean pages are kept compressed in memory.
+     * A miss in the buffer pool checks this cache before reading the page
+     * from its DbFile.
+     *
+     * @param pages maximum number of compressed pages, 0 disables the cache
+     */
+    public void setCompressedCacheCapacity(int pages) {
+        compressedCache.setCapacity(pages);
+    }
+
+    /**
+     * Enables or disables tuple locking for heap file inserts and deletes.
+     * When disabled (the default) they lock the whole page they change.
+     * Should only be changed while no transaction is running.
+     */
+    public void setTupleLocking(boolean enabled) {
+        this.tupleLocking = enabled;
+    }
+
+    public boolean isTupleLocking() {
+        return tupleLocking;
+    }
+
+    /**
+     * Enables or disables snapshot isolation.  While enabled, every page
+     * written to disk has its previous version saved for the snapshot
+     * transactions that may still need it, at the cost of reading the old
+     * version first.  Should only be changed while no transaction is running.
+     */
+    public void setSnapshotIsolation(boolean enabled) {
+        this.snapshotIsolation = enabled;
+    }
+
+    public boolean isSnapshotIsolation() {
+        return snapshotIsolation;
+    }
+
+    /**
+     * Makes tid a read-only snapshot transaction: from now on it sees the
+     * database as of the last commit and takes no locks.  It must not have
+     * read or written anything yet, and ends with transactionComplete as
+     * usual.
+     *
+     * @throws IllegalStateException if snapshot isolation is not enabled
+     */
+    public void beginSnapshot(TransactionId tid) {
+        if(!snapshotIsolation) throw new IllegalStateException("snapshot isolation is not enabled");
+        versions.beginSnapshot(tid);
+    }
+
+    /** @return true if tid is a running snapshot transaction */
+    public boolean isSnapshot(TransactionId tid) {
+        return versions.isSnapshot(tid);
+    }
+
+    /**
+     * Declares tid read-only: it reads under shared locks as usual, fails
+     * with a DbException if it asks for a page with READ_WRITE, and its
+     * completion skips flushing and discarding dirty pages.
+     */
+    public void beginReadOnly(TransactionId tid) {
+        readOnly.add(tid);
+    }
+
+    /** @return true if tid was declared read-only, with or without a snapshot */
+    public boolean isReadOnly(TransactionId tid) {
+        return readOnly.contains(tid) || versions.isSnapshot(tid);
+    }
+
+    /**
+     * Makes tid an optimistic transaction: it takes no locks while it runs,
+     * and its changes stay private until it commits with commitOptimistic.
+     * It must not have read or written anything yet.
+     */
+    public void beginOptimistic(TransactionId tid) {
+        optimistic.begin(tid);
+    }
+
+    /** @return true if tid is a running optimistic transaction */
+    public boolean isOptimistic(TransactionId tid) {
+        return optimistic.isOptimistic(tid);
+    }
+
+    /** @return the state of the running optimistic transactions */
+    public OptimisticTransactions getOptimisticTransactions() {
+        return optimistic;
+    }
+
+    /** @return the store holding the page versions read by snapshot transactions */
+    public PageVersionStore getVersionStore() {
+        return versions;
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -74,30 +319,202 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, Priority.NORMAL);
+    }
+
+    /**
+     * Same as {@link #getPage(TransactionId, PageId, Permissions)}, but tags
+     * the page with a replacement priority.  A page fetched with HIGH priority
+     * keeps it until it leaves the buffer pool.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param priority the replacement priority class of the page
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, Priority priority)
         throws TransactionAbortedException, DbException {
         // some code goes here
         //对该页面尝试加锁，否则阻塞当前线程
+        //快照事务不加锁，直接读它能看到的版本
+        if(versions.isSnapshot(tid)){
+            if(perm == Permissions.READ_WRITE) throw new DbException("snapshot transactions are read-only");
+            return versions.read(tid, pid);
+        }
+        if(perm == Permissions.READ_WRITE && readOnly.contains(tid))
+            throw new DbException("read-only transactions cannot write");
+        //乐观事务也不加锁，读写的都是自己的页面副本
+        if(optimistic.isOptimistic(tid)) return optimistic.read(tid, pid);
         TransactionHelp.getTransactionHelp().getLock(tid, pid, perm);
+        Page page = loadPage(tid, pid, perm);
+        if(priority == Priority.HIGH) pagePriority.put(pid, Priority.HIGH);
+        return page;
+
+//        if(!bufferMap_PageIDtoPage.containsKey(pid)){
+//            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+//            bufferMap_PageIDtoPage.put(pid, page);
+//        }
+//        if(perm == Permissions.READ_WRITE)
+//            bufferMap_PageIDtoPage.get(pid).markDirty(true, tid);
+//        return bufferMap_PageIDtoPage.get(pid);
+    }
+
+    /**
+     * Retrieves a heap page whose tuples the transaction is going to lock
+     * and modify one by one.  Takes IX locks on the page and its table, and
+     * may block if another transaction reads or writes the whole page.
+     * <p>
+     * Callers must hold the page's monitor while they change it, and report
+     * each change with {@link #tupleInserted} or {@link #tupleDeleted}.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     */
+    public Page getPageForTupleUpdate(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        TransactionHelp.getTransactionHelp().lockPageForTupleUpdate(tid, pid);
+        return loadPage(tid, pid, Permissions.READ_ONLY);
+    }
+
+    //从缓冲池中取出页面，不在则从二级缓存或者磁盘读入
+    private Page loadPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
         //如果缓冲池中没有该页面并且缓冲池已满，则evict一个页面
         while(!bufferMap_PageIDtoPage.containsKey(pid) && bufferMap_PageIDtoPage.size()>=numPages) evictPage();
 
         Page page = bufferMap_PageIDtoPage.get(pid);
         if(page == null){
-            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            //先查压缩的二级缓存，没有再读磁盘
+            page = compressedCache.take(pid);
+            if(page == null) page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
             if(bufferMap_PageIDtoPage.size() >= numPages) evictPage();
             if(perm == Permissions.READ_WRITE) page.markDirty(true, tid);
 
             bufferMap_PageIDtoPage.put(pid, page);
         }
         return page;
+    }
 
-//        if(!bufferMap_PageIDtoPage.containsKey(pid)){
-//            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-//            bufferMap_PageIDtoPage.put(pid, page);
-//        }
-//        if(perm == Permissions.READ_WRITE)
-//            bufferMap_PageIDtoPage.get(pid).markDirty(true, tid);
-//        return bufferMap_PageIDtoPage.get(pid);
+    /**
+     * @return true if this exact page object is the buffer pool's copy of its
+     *     page, i.e. it has not been evicted since it was retrieved
+     */
+    public boolean isResident(Page page) {
+        return bufferMap_PageIDtoPage.get(page.getId()) == page;
+    }
+
+    /**
+     * Records that a transaction inserted a tuple into a page under a tuple
+     * lock.  Must be called with the page's monitor held.
+     */
+    public void tupleInserted(TransactionId tid, HeapPage page, Tuple t) {
+        recordTupleChange(tid, page, new TupleChange(t, true));
+    }
+
+    /**
+     * Records that a transaction deleted a tuple from a page under a tuple
+     * lock.  Must be called with the page's monitor held.
+     */
+    public void tupleDeleted(TransactionId tid, HeapPage page, Tuple t) {
+        recordTupleChange(tid, page, new TupleChange(t, false));
+    }
+
+    private void recordTupleChange(TransactionId tid, HeapPage page, TupleChange change) {
+        PageId pid = page.getId();
+        tupleChanges.computeIfAbsent(tid, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(pid, k -> new ArrayList<>()).add(change);
+        tupleWriters.computeIfAbsent(pid, k -> ConcurrentHashMap.newKeySet()).add(tid);
+        page.markDirty(true, tid);
+        compressedCache.invalidate(pid);
+    }
+
+    /**
+     * Ends the tuple-locked changes of a transaction.  On abort they are
+     * undone in place, newest first; pages the transaction also locked
+     * exclusively are left to be discarded with its other dirty pages.  Then
+     * each page stays dirty for as long as another transaction has changes
+     * on it.
+     */
+    private void finishTupleChanges(TransactionId tid, boolean commit) throws IOException {
+        Map<PageId, List<TupleChange>> changes = tupleChanges.remove(tid);
+        if(changes == null) return;
+        TransactionHelp lockManager = TransactionHelp.getTransactionHelp();
+        for(Map.Entry<PageId, List<TupleChange>> entry: changes.entrySet()){
+            PageId pid = entry.getKey();
+            Set<TransactionId> writers = tupleWriters.get(pid);
+            if(writers != null){
+                writers.remove(tid);
+                if(writers.isEmpty()) tupleWriters.remove(pid, writers);
+            }
+            HeapPage page = (HeapPage) bufferMap_PageIDtoPage.get(pid);
+            if(page == null) continue;
+            synchronized(page){
+                if(!commit && lockManager.getPageLockMode(tid, pid) == TransactionHelp.LockMode.X){
+                    page.markDirty(true, tid);
+                    continue;
+                }
+                if(!commit){
+                    List<TupleChange> list = entry.getValue();
+                    try {
+                        for(int i = list.size() - 1; i >= 0; i--) list.get(i).undo(page);
+                    } catch (DbException e) {
+                        throw new IOException("failed to undo tuple change on " + pid, e);
+                    }
+                }
+                //已提交的修改都已经写回磁盘，只剩其他事务未提交的修改时页面仍然是脏的
+                TransactionId other = null;
+                if(writers != null){
+                    for(TransactionId w: writers){
+                        other = w;
+                        break;
+                    }
+                }
+                page.markDirty(other != null, other);
+            }
+        }
+    }
+
+    /**
+     * Builds the image of a page that other transactions have tuple-locked
+     * changes on.  Their changes are undone on a copy of the page, so that
+     * only committed data and the changes of keep (if not null) reach the
+     * disk.
+     */
+    private HeapPage tupleLockedImage(HeapPage page, Set<TransactionId> writers, TransactionId keep)
+        throws IOException {
+        PageId pid = page.getId();
+        HeapPage image;
+        synchronized(page){
+            image = new HeapPage((HeapPageId) pid, page.getPageData());
+            for(TransactionId w: writers){
+                if(w.equals(keep)) continue;
+                Map<PageId, List<TupleChange>> changes = tupleChanges.get(w);
+                List<TupleChange> list = changes == null ? null : changes.get(pid);
+                if(list == null) continue;
+                try {
+                    for(int i = list.size() - 1; i >= 0; i--) list.get(i).undo(image);
+                } catch (DbException e) {
+                    throw new IOException("failed to undo tuple change on " + pid, e);
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Locks a whole table for a transaction instead of locking its pages one
+     * by one: in S mode for READ_ONLY and in X mode for READ_WRITE.  May block
+     * if the lock cannot be acquired.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the ID of the table to lock
+     * @param perm the requested permissions on the table
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        //快照事务和乐观事务运行时都不加锁
+        if(versions.isSnapshot(tid) || optimistic.isOptimistic(tid)) return;
+        TransactionHelp.getTransactionHelp().lockTable(tid, tableId, perm);
     }
 
     /**
@@ -128,24 +545,90 @@ public class BufferPool {
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction.  Optimistic transactions can be aborted here but
+     * commit with {@link #commitOptimistic}, the only method that reports a
+     * failed validation.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @throws IllegalStateException if asked to commit an optimistic
+     *     transaction
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        if(versions.isSnapshot(tid)){
+            versions.endSnapshot(tid);
+            return;
+        }
+        //只读事务没有脏页，只需要释放锁
+        if(readOnly.remove(tid)){
+            TransactionHelp.getTransactionHelp().releaseAllLocks(tid);
+            return;
+        }
+        if(optimistic.isOptimistic(tid)){
+            if(commit) throw new IllegalStateException("optimistic transactions commit with commitOptimistic");
+            abortOptimistic(tid);
+            return;
+        }
         if(commit) flushPages(tid);
-        else{
+        finishTupleChanges(tid, commit);
+        if(!commit){
             for(Map.Entry<PageId, Page> entry: this.bufferMap_PageIDtoPage.entrySet()){
                 Page page = entry.getValue();
                 PageId pid = entry.getKey();
                 if(tid.equals(page.isDirty())) discardPage(pid);
-                releasePage(tid, pid);
             }
         }
+        //该事务写回磁盘的页面从现在开始对新的快照可见
+        versions.publish(tid);
+        //释放该事务的所有锁，包括已经被淘汰出缓冲池的页面上的锁
+        TransactionHelp.getTransactionHelp().releaseAllLocks(tid);
+    }
+
+    /**
+     * Commits an optimistic transaction.  Locks the pages it changed, checks
+     * that no page it read has been written since, logs the changed pages
+     * followed by a forced COMMIT record, and writes the pages; otherwise
+     * aborts it without logging anything.  {@link Transaction#commitOptimistic}
+     * calls this instead of logging its own COMMIT record.
+     *
+     * @throws TransactionAbortedException if validation failed; the
+     *     transaction has been aborted when this is thrown
+     */
+    public void commitOptimistic(TransactionId tid)
+        throws TransactionAbortedException, IOException {
+        List<Page> writeSet = optimistic.getWriteSet(tid);
+        //只在提交的时候对要写的页面加锁，等持有锁的加锁事务结束
+        for(Page page: writeSet){
+            TransactionHelp.getTransactionHelp().getLock(tid, page.getId(), Permissions.READ_WRITE);
+        }
+        latch.lock();
+        try {
+            if(!optimistic.validate(tid)){
+                abortOptimistic(tid);
+                throw new TransactionAbortedException();
+            }
+            //更新记录在提交记录之前，恢复时才会把这个事务当作已提交
+            for(Page page: writeSet) logWrite(tid, page.getBeforeImage(), page);
+            Database.getLogFile().logCommit(tid);
+            for(Page page: writeSet){
+                writeToDisk(page, tid);
+                //缓冲池里的旧副本已经过时了
+                discardPage(page.getId());
+            }
+        } finally {
+            latch.unlock();
+        }
+        optimistic.end(tid, true);
+        versions.publish(tid);
+        TransactionHelp.getTransactionHelp().releaseAllLocks(tid);
+    }
+
+    private void abortOptimistic(TransactionId tid) {
+        optimistic.end(tid, false);
+        TransactionHelp.getTransactionHelp().releaseAllLocks(tid);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
@@ -176,10 +659,16 @@ public class BufferPool {
         // not necessary for lab1
         DbFile dataBaseFile = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> pages = dataBaseFile.insertTuple(tid, t);
+        //乐观事务修改的是自己的副本，不放进缓冲池
+        if(optimistic.isOptimistic(tid)){
+            for(Page page: pages) page.markDirty(true, tid);
+            return;
+        }
         for(Page page: pages){
             while(!bufferMap_PageIDtoPage.containsKey(page.getId()) && bufferMap_PageIDtoPage.size()>=numPages) evictPage();
             page.markDirty(true, tid);
             bufferMap_PageIDtoPage.put(page.getId(), page);
+            compressedCache.invalidate(page.getId());
         }
     }
 
@@ -210,11 +699,16 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for(PageId pageId: bufferMap_PageIDtoPage.keySet()){
-            flushPage(pageId);
+        latch.lock();
+        try {
+            for(PageId pageId: bufferMap_PageIDtoPage.keySet()){
+                flushPage(pageId);
+            }
+        } finally {
+            latch.unlock();
         }
     }
 
@@ -226,44 +720,155 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        if(pid == null) return;
-        bufferMap_PageIDtoPage.remove(pid);
+        latch.lock();
+        try {
+            if(pid == null) return;
+            bufferMap_PageIDtoPage.remove(pid);
+            pagePriority.remove(pid);
+            compressedCache.invalidate(pid);
+        } finally {
+            latch.unlock();
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = bufferMap_PageIDtoPage.getOrDefault(pid, null);
-        if(page != null && page.isDirty() != null){
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
-            page.markDirty(false, null);
+        latch.lock();
+        try {
+            Page page = bufferMap_PageIDtoPage.getOrDefault(pid, null);
+            Set<TransactionId> writers = tupleWriters.get(pid);
+            if(page != null && writers != null && !writers.isEmpty()){
+                //页面上还有未提交的元组修改，只写回已提交的部分，页面仍然是脏的
+                //已提交的修改在提交时已经写过日志
+                writeToDisk(tupleLockedImage((HeapPage) page, writers, null), null);
+            }
+            else if(page != null && page.isDirty() != null){
+                //WAL：先把更新记录刷到磁盘，再写页面
+                logWrite(page.isDirty(), page.getBeforeImage(), page);
+                Database.getLogFile().force();
+                writeToDisk(page, page.isDirty());
+                page.markDirty(false, null);
+                page.setBeforeImage();
+            }
+        } finally {
+            latch.unlock();
         }
     }
 
     /** Write all pages of the specified transaction to disk.
+     *  The pages are logged and written once: afterwards they are clean,
+     *  and a later call writes only what the transaction changed since.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
-        // not necessary for lab1|lab2
-        for(Map.Entry<PageId, Page> entry: this.bufferMap_PageIDtoPage.entrySet()){
-            PageId pid = entry.getKey();
-            Page pageToBeFlushed = entry.getValue();
-            TransactionId holdTid = pageToBeFlushed.isDirty();
-
-            if(holdTid!=null && holdTid.equals(tid))
-                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pageToBeFlushed);
-            try {
-                releasePage(tid, pid);
-            } catch (Exception e) {
-                e.printStackTrace();
+        latch.lock();
+        try {
+            // not necessary for lab1|lab2
+            List<Page> pages = new ArrayList<>();
+            List<Page> images = new ArrayList<>();
+            for(Map.Entry<PageId, Page> entry: this.bufferMap_PageIDtoPage.entrySet()){
+                PageId pid = entry.getKey();
+                Page pageToBeFlushed = entry.getValue();
+                TransactionId holdTid = pageToBeFlushed.isDirty();
+                Set<TransactionId> writers = tupleWriters.get(pid);
+
+                if(writers != null && writers.contains(tid)){
+                    HeapPage image = tupleLockedImage((HeapPage) pageToBeFlushed, writers, tid);
+                    logWrite(tid, readFromDisk(pid), image);
+                    tupleChangesFlushed(tid, pageToBeFlushed, writers);
+                    pages.add(null);
+                    images.add(image);
+                }
+                else if(holdTid!=null && holdTid.equals(tid)){
+                    logWrite(tid, pageToBeFlushed.getBeforeImage(), pageToBeFlushed);
+                    pages.add(pageToBeFlushed);
+                    images.add(pageToBeFlushed);
+                }
+            }
+            if(images.isEmpty()) return;
+            //所有更新记录一起刷一次日志，然后再写页面
+            Database.getLogFile().force();
+            //写回之后页面是干净的，提交时再调用一次也不会重复写更新记录
+            for(int i = 0; i < images.size(); i++){
+                writeToDisk(images.get(i), tid);
+                if(pages.get(i) != null){
+                    pages.get(i).markDirty(false, null);
+                    pages.get(i).setBeforeImage();
+                }
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    // tid在页面上的元组修改已经写进日志，在持有latch时马上不再把它们当作未提交：
+    // 提交记录写出之后，其他事务写回这个页面时不能再撤销它们
+    private void tupleChangesFlushed(TransactionId tid, Page page, Set<TransactionId> writers) {
+        synchronized(page){
+            writers.remove(tid);
+            if(writers.isEmpty()) tupleWriters.remove(page.getId(), writers);
+            if(!tid.equals(page.isDirty())) return;
+            TransactionId other = null;
+            for(TransactionId w: writers){
+                other = w;
+                break;
             }
+            page.markDirty(other != null, other);
+        }
+    }
+
+    // 写页面之前先追加它的更新记录，调用者负责在写页面之前刷日志
+    private void logWrite(TransactionId tid, Page before, Page after) throws IOException {
+        Database.getLogFile().logWrite(tid, before, after);
+    }
+
+    // 页面当前在磁盘上的内容，文件末尾之后的页面视为空页
+    private Page readFromDisk(PageId pid) throws IOException {
+        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        return page != null ? page : new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+    }
+
+    /**
+     * Writes a page to its file, through the version store when snapshot
+     * isolation is enabled.
+     *
+     * @param writer the transaction whose changes are written, or null
+     */
+    private void writeToDisk(Page page, TransactionId writer) throws IOException {
+        PageId pid = page.getId();
+        optimistic.beforeWrite(pid);
+        try {
+            if(snapshotIsolation) versions.write(page, writer);
+            else Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        } finally {
+            optimistic.afterWrite(pid);
+        }
+    }
+
+    /**
+     * Installs a page changed outside the buffer pool, by a transaction
+     * replayed from the log of another database (see {@link LogReplica}) or
+     * by the rollback of a transaction (see {@link LogFile#rollback}):
+     * writes it to its file, through the version store when snapshot
+     * isolation is enabled, and drops the cached copy.  The transaction must
+     * hold a lock on the page; its changes become visible to new snapshots
+     * when it completes.
+     */
+    public void installPage(TransactionId tid, Page page) throws IOException {
+        latch.lock();
+        try {
+            writeToDisk(page, tid);
+            discardPage(page.getId());
+        } finally {
+            latch.unlock();
         }
     }
 
@@ -271,17 +876,48 @@ public class BufferPool {
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        if(bufferMap_PageIDtoPage.size() == 0) throw new DbException("no page to evict");
-        for(PageId pageId: bufferMap_PageIDtoPage.keySet()){
-            if(bufferMap_PageIDtoPage.get(pageId).isDirty() == null){
-                discardPage(pageId);
-                return;
+        latch.lock();
+        try {
+            if(bufferMap_PageIDtoPage.size() == 0) throw new DbException("no page to evict");
+            if(!tryEvictPage()) throw new DbException("No page to evict");
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Evicts one clean page from the buffer pool, if there is one.  NORMAL
+     * priority pages are evicted before HIGH priority pages.
+     * @return true if a page was evicted, false if every resident page is dirty
+     */
+    private boolean tryEvictPage() {
+        return tryEvictPage(Priority.NORMAL) || tryEvictPage(Priority.HIGH);
+    }
+
+    private boolean tryEvictPage(Priority priority) {
+        latch.lock();
+        try {
+            for(Map.Entry<PageId, Page> entry: bufferMap_PageIDtoPage.entrySet()){
+                PageId pageId = entry.getKey();
+                Page page = entry.getValue();
+                if(getPriority(pageId) != priority) continue;
+                //持有页面的monitor，避免与按元组修改该页面的事务交错
+                synchronized(page){
+                    if(page.isDirty() == null){
+                        bufferMap_PageIDtoPage.remove(pageId);
+                        pagePriority.remove(pageId);
+                        compressedCache.put(page);
+                        return true;
+                    }
+                }
             }
+            return false;
+        } finally {
+            latch.unlock();
         }
-        throw new DbException("No page to evict");
     }
 
 }
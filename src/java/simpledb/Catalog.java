@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -17,7 +18,8 @@ import java.util.concurrent.ConcurrentHashMap;
  * @Threadsafe
  */
 public class Catalog {
-    private static final Integer CATALOG_LOCK = -1;
+    //只串行化修改，读直接访问并发的map
+    private static final ReentrantLock CATALOG_LOCK = new ReentrantLock();
 
     /**
      * Constructor.
@@ -30,11 +32,14 @@ public class Catalog {
 
     public Catalog() {
         // some code goes here
-        synchronized (CATALOG_LOCK){
+        CATALOG_LOCK.lock();
+        try {
             TableID_DbFile = new ConcurrentHashMap<>();
             TableID_PrimaryKey = new ConcurrentHashMap<>();
             TableID_TableName = new ConcurrentHashMap<>();
             TableName_TableID = new ConcurrentHashMap<>();
+        } finally {
+            CATALOG_LOCK.unlock();
         }
     }
 
@@ -49,12 +54,15 @@ public class Catalog {
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
-        synchronized (CATALOG_LOCK){
+        CATALOG_LOCK.lock();
+        try {
             Integer tableID = file.getId();
             TableID_DbFile.put(tableID, file);
             TableID_PrimaryKey.put(tableID, pkeyField);
             TableID_TableName.put(tableID, name);
             TableName_TableID.put(name, tableID);
+        } finally {
+            CATALOG_LOCK.unlock();
         }
 
 
@@ -137,11 +145,14 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
-        synchronized (CATALOG_LOCK){
+        CATALOG_LOCK.lock();
+        try {
             TableID_TableName.clear();
             TableID_PrimaryKey.clear();
             TableID_DbFile.clear();
             TableName_TableID.clear();
+        } finally {
+            CATALOG_LOCK.unlock();
         }
     }
     
@@ -0,0 +1,190 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CompressedPageCache is the second tier of the BufferPool.  It holds clean
+ * pages that were evicted from the BufferPool in compressed form, so that a
+ * later miss on the same page costs a decompression instead of a disk read.
+ * <p>
+ * The cache is exclusive: a page is removed from it when the BufferPool takes
+ * it back, so a page is never both resident and compressed.  Only clean pages
+ * are stored, so the compressed copy always matches the page on disk.  When
+ * the cache is full the least recently stored page is dropped.
+ *
+ * @see BufferPool
+ * @Threadsafe
+ */
+public class CompressedPageCache {
+
+    private int capacity;
+    private final LinkedHashMap<PageId, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long storedBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Creates a cache that holds up to capacity compressed pages.
+     *
+     * @param capacity maximum number of pages, 0 disables the cache
+     */
+    public CompressedPageCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Changes the number of pages this cache may hold, dropping the least
+     * recently stored pages if it shrinks.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if(capacity < 0) throw new IllegalArgumentException("capacity must not be negative");
+        this.capacity = capacity;
+        shrinkToCapacity();
+    }
+
+    /**
+     * Stores a compressed copy of a clean page that is leaving the BufferPool.
+     *
+     * @param page the page to store, must not be dirty
+     */
+    public void put(Page page) {
+        if(getCapacity() == 0 || page.isDirty() != null) return;
+        byte[] compressed = compress(page.getPageData());
+        synchronized(this) {
+            byte[] old = cache.put(page.getId(), compressed);
+            if(old != null) storedBytes -= old.length;
+            storedBytes += compressed.length;
+            shrinkToCapacity();
+        }
+    }
+
+    /**
+     * Removes the specified page from the cache and rebuilds it.
+     *
+     * @param pid the id of the page
+     * @return the page, or null if it is not cached
+     * @throws DbException if the cached copy cannot be rebuilt; it has been
+     *     removed from the cache when this is thrown
+     */
+    public Page take(PageId pid) throws DbException {
+        byte[] compressed;
+        synchronized(this) {
+            compressed = cache.remove(pid);
+            if(compressed == null){
+                misses++;
+                return null;
+            }
+            storedBytes -= compressed.length;
+            hits++;
+        }
+        try {
+            return decode(pid, decompress(compressed));
+        } catch (IOException e) {
+            throw new DbException("cannot rebuild compressed page " + pid.getPageNumber()
+                                  + " of table " + pid.getTableId() + ": " + e.getMessage());
+        }
+    }
+
+    /** Drops the compressed copy of the specified page, if any. */
+    public synchronized void invalidate(PageId pid) {
+        byte[] old = cache.remove(pid);
+        if(old != null) storedBytes -= old.length;
+    }
+
+    /** Drops every compressed page. */
+    public synchronized void clear() {
+        cache.clear();
+        storedBytes = 0;
+    }
+
+    /** @return true if a compressed copy of the specified page is held */
+    public synchronized boolean contains(PageId pid) {
+        return cache.containsKey(pid);
+    }
+
+    /** @return the number of pages currently held */
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    /** @return the total size of the compressed pages currently held, in bytes */
+    public synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /** @return the number of lookups that found the page */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that did not find the page */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private void shrinkToCapacity() {
+        Iterator<Map.Entry<PageId, byte[]>> it = cache.entrySet().iterator();
+        while(cache.size() > capacity && it.hasNext()){
+            storedBytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 4);
+            byte[] buf = new byte[1024];
+            while(!deflater.finished()){
+                int n = deflater.deflate(buf);
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] data = new byte[BufferPool.getPageSize()];
+            int len = 0;
+            while(!inflater.finished()){
+                if(len == data.length) data = Arrays.copyOf(data, data.length * 2);
+                int n = inflater.inflate(data, len, data.length - len);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("truncated compressed page");
+                len += n;
+            }
+            return len == data.length ? data : Arrays.copyOf(data, len);
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Rebuilds a page from its serialized form, the same way its DbFile
+     * would after reading the bytes from disk.
+     */
+    private static Page decode(PageId pid, byte[] data) throws IOException {
+        try {
+            return PageCodecs.decode(pid, data);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("unknown page id type " + pid.getClass().getName(), e);
+        }
+    }
+}
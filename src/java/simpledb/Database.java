@@ -18,7 +18,7 @@ public class Database {
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
 
-    private final static String LOGFILENAME = "log";
+    final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
     private Database() {
@@ -74,9 +74,23 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /**
+     * Change the capacity of the buffer pool of the static Database instance
+     * in place, keeping all resident pages and locks.
+     *
+     * @see BufferPool#resize(int)
+     */
+    public static BufferPool resizeBufferPool(int pages) {
+        BufferPool bufferPool = _instance.get()._bufferpool;
+        bufferPool.resize(pages);
+        return bufferPool;
+    }
+
     // reset the database, used for unit tests only.
     public static void reset() {
         _instance.set(new Database());
+        //锁管理器是单例，模拟崩溃时旧事务持有的锁也要一起丢掉
+        TransactionHelp.getTransactionHelp().reset();
     }
 
 }
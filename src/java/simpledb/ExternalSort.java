@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExternalSort sorts the tuples of a child in ascending order of one field
+ * within a memory budget.  The child is read in runs that fit in memory;
+ * each run is sorted, and if there is more than one they are written to
+ * spill files and merged into a single sorted file.  The sorted tuples
+ * can then be read any number of times.
+ */
+class ExternalSort {
+
+    private final OpIterator child;
+    private final int field;
+    private final int memoryBytes;
+    private final TupleComparator comparator;
+
+    private ArrayList<Tuple> sorted = null; // the only run, when it fits in memory
+    private SpillFile merged = null;        // the merged runs otherwise
+    private Iterator<Tuple> memoryIt;
+    private SpillFile.Reader fileIt;
+    private int numRuns = 0;
+
+    /**
+     * @param child the tuples to sort, open
+     * @param field the field to sort on
+     * @param memoryBytes memory for a run, in bytes; a run holds at least
+     *     one tuple
+     */
+    ExternalSort(OpIterator child, int field, int memoryBytes) {
+        this.child = child;
+        this.field = field;
+        this.memoryBytes = memoryBytes;
+        this.comparator = new TupleComparator(field, true);
+    }
+
+    /** Reads and sorts the child, from its current position. */
+    void sort() throws DbException, TransactionAbortedException {
+        close();
+        int capacity = Math.max(1, memoryBytes / child.getTupleDesc().getSize());
+        List<SpillFile> runs = new ArrayList<SpillFile>();
+        ArrayList<Tuple> run = new ArrayList<Tuple>();
+        try {
+            while (child.hasNext()) {
+                run.add(child.next());
+                if (run.size() >= capacity) {
+                    runs.add(writeRun(run));
+                    run.clear();
+                }
+            }
+            if (runs.isEmpty()) {
+                Collections.sort(run, comparator);
+                sorted = run;
+                numRuns = run.isEmpty() ? 0 : 1;
+            } else {
+                if (!run.isEmpty()) runs.add(writeRun(run));
+                numRuns = runs.size();
+                merged = merge(runs);
+            }
+        } finally {
+            for (SpillFile f : runs) f.delete();
+        }
+        rewind();
+    }
+
+    private SpillFile writeRun(ArrayList<Tuple> run) throws DbException {
+        Collections.sort(run, comparator);
+        SpillFile f = new SpillFile(child.getTupleDesc());
+        for (Tuple t : run) f.add(t);
+        return f;
+    }
+
+    // 多路归并：每个run当前最小的元组放进优先队列，相等时按run的顺序
+    private SpillFile merge(List<SpillFile> runs) throws DbException {
+        final List<SpillFile.Reader> readers = new ArrayList<SpillFile.Reader>();
+        final Tuple[] heads = new Tuple[runs.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(runs.size(), (a, b) -> {
+            int c = comparator.compare(heads[a], heads[b]);
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        for (int i = 0; i < runs.size(); i++) {
+            readers.add(runs.get(i).reader());
+            heads[i] = readers.get(i).next();
+            if (heads[i] != null) queue.add(i);
+        }
+        SpillFile out = new SpillFile(child.getTupleDesc());
+        while (!queue.isEmpty()) {
+            int i = queue.poll();
+            out.add(heads[i]);
+            heads[i] = readers.get(i).next();
+            if (heads[i] != null) queue.add(i);
+        }
+        return out;
+    }
+
+    /** @return the number of sorted runs the child was read in */
+    int getNumRuns() {
+        return numRuns;
+    }
+
+    /** @return the next tuple in sorted order, or null after the last one */
+    Tuple next() throws DbException {
+        if (memoryIt != null) return memoryIt.hasNext() ? memoryIt.next() : null;
+        if (fileIt != null) return fileIt.next();
+        return null;
+    }
+
+    /** Starts reading the sorted tuples from the first one again. */
+    void rewind() throws DbException {
+        if (sorted != null) memoryIt = sorted.iterator();
+        if (merged != null) {
+            if (fileIt != null) fileIt.close();
+            fileIt = merged.reader();
+        }
+    }
+
+    /** Releases the sorted tuples and deletes the spill files. */
+    void close() {
+        if (fileIt != null) fileIt.close();
+        if (merged != null) merged.delete();
+        sorted = null;
+        merged = null;
+        memoryIt = null;
+        fileIt = null;
+        numRuns = 0;
+    }
+}
@@ -3,21 +3,50 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join with a hybrid hash
+ * join.
+ * <p>
+ * The outer (build) child is loaded into an in-memory hash table, and the
+ * inner (probe) child is streamed through it.  When the build side does
+ * not fit in the memory budget, both children are split into partitions
+ * by the hash of the join field: the first partition stays in memory and
+ * is joined while the inner child is read, the others are written to
+ * temporary files and joined pair by pair afterwards.  A pair whose build
+ * side still does not fit is partitioned again with another hash function,
+ * so that skewed keys are split further; after MAX_DEPTH levels, which
+ * only happens when many tuples share a key, the pair is joined in chunks
+ * of the build side that fit, rescanning its probe side once per chunk.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory for the hash table of the build side, in bytes */
+    public static final int DEFAULT_MEMORY_BYTES = 1 << 22;
+    /** Number of partitions the inputs are split into when they do not fit */
+    static final int NUM_PARTITIONS = 16;
+    /** Number of times a partition is partitioned again before chunking */
+    static final int MAX_DEPTH = 4;
+
     private JoinPredicate pred;
     private OpIterator child1, child2;
     private TupleDesc comboTD;
-    transient private Tuple t1 = null;
+    private final int memoryBytes;
     transient private Tuple t2 = null;
 
+    // 当前正在做的连接，和还没做的分区对
+    transient private Task task = null;
+    transient private Deque<Task> pending = new ArrayDeque<Task>();
+    transient private List<SpillFile> spillFiles = new ArrayList<SpillFile>();
+
+    // for tests
+    int spilledPartitions = 0;
+    int maxDepthReached = 0;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -26,9 +55,22 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Constructor for a join with the given memory budget.
+     *
+     * @param memoryBytes
+     *            Memory for the hash table of the build side, in bytes; it
+     *            holds at least one tuple
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryBytes) {
+        if (memoryBytes <= 0) throw new IllegalArgumentException("memory budget must be positive");
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryBytes = memoryBytes;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -39,7 +81,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -49,33 +91,204 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
+    /** A source of tuples: a child, or a spilled partition */
+    private interface Input {
+        /** @return the next tuple, or null after the last one */
+        Tuple next() throws DbException, TransactionAbortedException;
+        /** Starts over from the first tuple. */
+        void rewind() throws DbException, TransactionAbortedException;
+    }
+
+    private static Input input(final OpIterator child) {
+        return new Input() {
+            public Tuple next() throws DbException, TransactionAbortedException {
+                return child.hasNext() ? child.next() : null;
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                child.rewind();
+            }
+        };
+    }
+
+    private static Input input(final SpillFile file) throws DbException {
+        return new Input() {
+            private SpillFile.Reader reader = file.reader();
+
+            public Tuple next() throws DbException {
+                return reader.next();
+            }
+
+            public void rewind() throws DbException {
+                reader.close();
+                reader = file.reader();
+            }
+        };
+    }
+
+    /**
+     * Joining a build input with a probe input.  Partitions of the probe
+     * input that are not in memory are spilled while it is read.
+     */
+    private class Task {
+        final Input build;
+        final Input probe;
+        final int depth;
+        final HashMap<Field, ArrayList<Tuple>> map = new HashMap<Field, ArrayList<Tuple>>();
+        int inMemory = 0;             // tuples in map
+        SpillFile[] buildParts = null; // null until the build side overflows
+        SpillFile[] probeParts = null;
+        boolean chunked = false;       // joining the build side chunk by chunk
+        boolean buildDone = false;
+        final SpillFile[] files;       // the spilled partitions read, deleted when done
+
+        Task(Input build, Input probe, int depth, SpillFile... files) {
+            this.build = build;
+            this.probe = probe;
+            this.depth = depth;
+            this.files = files;
+            maxDepthReached = Math.max(maxDepthReached, depth);
+        }
+
+        int capacity() {
+            return Math.max(1, memoryBytes / child1.getTupleDesc().getSize());
+        }
+
+        // 分区0没有溢出到磁盘时在内存里连接
+        boolean inMemory(int partition) {
+            return buildParts == null || (partition == 0 && buildParts[0] == null);
+        }
+
+        void put(Tuple t) {
+            Field key = t.getField(pred.getField1());
+            ArrayList<Tuple> list = map.get(key);
             if (list == null) {
                 list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+                map.put(key, list);
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            list.add(t);
+            inMemory++;
         }
-        return cnt > 0;
 
+        /**
+         * Reads the build side, or its next chunk when chunked.
+         */
+        void loadBuild() throws DbException, TransactionAbortedException {
+            map.clear();
+            inMemory = 0;
+            Tuple t;
+            while ((t = build.next()) != null) {
+                if (chunked) {
+                    put(t);
+                    if (inMemory >= capacity()) return;
+                    continue;
+                }
+                int p = partition(t.getField(pred.getField1()), depth);
+                if (inMemory(p)) {
+                    put(t);
+                    if (inMemory > capacity()) {
+                        overflow();
+                        if (chunked) return;
+                    }
+                } else {
+                    spill(buildParts, p, t, child1.getTupleDesc());
+                }
+            }
+            buildDone = true;
+        }
+
+        // 内存放不下：第一次先分区，分区0也放不下时把它也写到磁盘
+        private void overflow() throws DbException {
+            if (buildParts == null) {
+                if (depth >= MAX_DEPTH) {
+                    chunked = true;
+                    return;
+                }
+                buildParts = new SpillFile[NUM_PARTITIONS];
+                probeParts = new SpillFile[NUM_PARTITIONS];
+                HashMap<Field, ArrayList<Tuple>> all = new HashMap<Field, ArrayList<Tuple>>(map);
+                map.clear();
+                inMemory = 0;
+                for (Map.Entry<Field, ArrayList<Tuple>> entry : all.entrySet()) {
+                    int p = partition(entry.getKey(), depth);
+                    for (Tuple t : entry.getValue()) {
+                        if (p == 0) put(t);
+                        else spill(buildParts, p, t, child1.getTupleDesc());
+                    }
+                }
+                if (inMemory <= capacity()) return;
+            }
+            for (ArrayList<Tuple> list : map.values()) {
+                for (Tuple t : list) spill(buildParts, 0, t, child1.getTupleDesc());
+            }
+            map.clear();
+            inMemory = 0;
+        }
+
+        /** @return the tuples of the build side matching a probe tuple, or null if spilled */
+        ArrayList<Tuple> probe(Tuple t) throws DbException {
+            Field key = t.getField(pred.getField2());
+            if (chunked) return map.get(key);
+            int p = partition(key, depth);
+            if (inMemory(p)) return map.get(key);
+            //这个分区的构建端没有元组时不会有匹配
+            if (buildParts[p] != null) spill(probeParts, p, t, child2.getTupleDesc());
+            return null;
+        }
+
+        /**
+         * Called when the probe side is exhausted.
+         *
+         * @return true if the task goes on with another chunk of the build side
+         */
+        boolean finish() throws DbException, TransactionAbortedException {
+            if (chunked && !buildDone) {
+                loadBuild();
+                if (inMemory > 0) {
+                    probe.rewind();
+                    return true;
+                }
+            }
+            map.clear();
+            for (SpillFile f : files) {
+                f.delete();
+                spillFiles.remove(f);
+            }
+            if (buildParts != null) {
+                for (int p = 0; p < NUM_PARTITIONS; p++) {
+                    if (buildParts[p] == null || probeParts[p] == null) continue;
+                    pending.push(new Task(input(buildParts[p]), input(probeParts[p]), depth + 1,
+                                          buildParts[p], probeParts[p]));
+                }
+            }
+            return false;
+        }
+    }
+
+    // 不同深度用不同的哈希函数，这样倾斜的分区再分区时能继续拆开
+    static int partition(Field key, int depth) {
+        int h = key.hashCode() * 0x9E3779B9 + depth * 0x85EBCA6B;
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 13;
+        return Math.floorMod(h, NUM_PARTITIONS);
+    }
+
+    private void spill(SpillFile[] parts, int p, Tuple t, TupleDesc td) throws DbException {
+        if (parts[p] == null) {
+            parts[p] = new SpillFile(td);
+            spillFiles.add(parts[p]);
+            if (parts == task.buildParts) spilledPartitions++;
+        }
+        parts[p].add(t);
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        reset();
         super.open();
     }
 
@@ -83,18 +296,29 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        reset();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        reset();
+    }
+
+    private void reset() {
+        for (SpillFile f : spillFiles) f.delete();
+        spillFiles.clear();
+        pending.clear();
+        task = null;
+        started = false;
+        t2 = null;
+        listIt = null;
+        spilledPartitions = 0;
+        maxDepthReached = 0;
     }
 
     transient Iterator<Tuple> listIt = null;
+    transient private boolean started = false;
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -110,12 +334,12 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+        Tuple t1 = listIt.next();
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -131,32 +355,37 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+            listIt = null;
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+            if (task == null) {
+                //先连接两个子节点，然后逐个连接溢出到磁盘的分区对
+                if (!started) {
+                    task = new Task(input(child1), input(child2), 0);
+                    started = true;
+                } else if (!pending.isEmpty()) {
+                    task = pending.pop();
+                } else {
+                    return null;
+                }
+                task.loadBuild();
+            }
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            // loop around the probe side
+            Tuple t = task.probe.next();
+            if (t == null) {
+                if (!task.finish()) task = null;
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            }
+            ArrayList<Tuple> l = task.probe(t);
+            if (l != null) {
+                t2 = t;
+                listIt = l.iterator();
+            }
         }
-
-        return null;
     }
 
     @Override
@@ -169,5 +398,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
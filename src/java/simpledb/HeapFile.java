@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -24,6 +25,8 @@ public class HeapFile implements DbFile {
      */
     private File file;
     private TupleDesc tupleDesc;
+    //串行化在文件末尾追加空页面，追加时要写磁盘，所以不用monitor
+    private final ReentrantLock appendLock = new ReentrantLock();
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         this.file = f;
@@ -142,6 +145,7 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if(useTupleLocks(tid)) return insertTupleLocked(tid, t);
         ArrayList<Page> ans = new ArrayList<>();
         //遍历该文件的所有页面
         for(int i=0; i<numPages(); i++){
@@ -156,13 +160,13 @@ public class HeapFile implements DbFile {
                 return ans;
             }
         }
-        //如果没有空页面，则新建页面并插入
-        byte[] emptyPage = HeapPage.createEmptyPageData();
-        HeapPage heapPage = new HeapPage(new HeapPageId(getId(), numPages()), emptyPage);
+        //如果没有空页面，则在文件末尾写一个空页面，再通过缓冲池插入，未提交的元组不会直接写到磁盘上
+        HeapPageId pageId = new HeapPageId(getId(), numPages());
+        writePage(new HeapPage(pageId, HeapPage.createEmptyPageData()));
+        HeapPage heapPage = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
         heapPage.markDirty(true, tid);
         heapPage.insertTuple(t);
         ans.add(heapPage);
-        writePage(heapPage); //writePage里面已经把markDirty改成false了
         return ans;
     }
 
@@ -171,23 +175,98 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if(useTupleLocks(tid)) return deleteTupleLocked(tid, t);
         ArrayList<Page> ans = new ArrayList<>();
-        for(int i=0; i<numPages(); i++){
-            PageId pageId = new HeapPageId(getId(), i);
-            HeapPage heapPage = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-            if(heapPage == null) continue;
-            boolean deleteFailed = false;
-            try{
-                heapPage.deleteTuple(t);
-            }catch (DbException e){
-                deleteFailed = true;
+        //元组只可能在它的RecordId指向的页面上，不需要遍历所有页面
+        RecordId recordId = t.getRecordId();
+        if(recordId == null || recordId.getPageId().getTableId() != getId()
+                || recordId.getPageId().getPageNumber() >= numPages()) return ans;
+        HeapPage heapPage = (HeapPage)Database.getBufferPool().getPage(tid, recordId.getPageId(), Permissions.READ_WRITE);
+        if(heapPage == null) return ans;
+        try{
+            heapPage.deleteTuple(t);
+        }catch (DbException e){
+            return ans;
+        }
+        heapPage.markDirty(true, tid);
+        ans.add(heapPage);
+        return ans;
+    }
+
+    //乐观事务和快照事务不加锁，总是按页面修改自己的副本
+    private boolean useTupleLocks(TransactionId tid) {
+        BufferPool bufferPool = Database.getBufferPool();
+        return bufferPool.isTupleLocking() && !bufferPool.isOptimistic(tid) && !bufferPool.isSnapshot(tid);
+    }
+
+    /**
+     * Inserts a tuple under a tuple lock instead of a page lock: takes IX
+     * locks on the pages it looks at and an X lock on the slot it fills, so
+     * other transactions can insert into the same page at the same time.
+     * Slots locked by another transaction (e.g. freed by an uncommitted
+     * delete) are skipped.
+     */
+    private ArrayList<Page> insertTupleLocked(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        TransactionHelp lockManager = TransactionHelp.getTransactionHelp();
+        int i = 0;
+        while(true){
+            for(; i<numPages(); i++){
+                PageId pageId = new HeapPageId(getId(), i);
+                boolean held = bufferPool.holdsLock(tid, pageId);
+                HeapPage heapPage = (HeapPage) bufferPool.getPageForTupleUpdate(tid, pageId);
+                synchronized(heapPage){
+                    //页面在加锁后被淘汰了，重新读入
+                    if(!bufferPool.isResident(heapPage)){
+                        i--;
+                        continue;
+                    }
+                    for(int slot=0; slot<heapPage.getNumSlots(); slot++){
+                        if(heapPage.isSlotUsed(slot)) continue;
+                        if(!lockManager.tryLockTuple(tid, new RecordId(pageId, slot))) continue;
+                        heapPage.insertTuple(t, slot);
+                        bufferPool.tupleInserted(tid, heapPage, t);
+                        ArrayList<Page> ans = new ArrayList<>();
+                        ans.add(heapPage);
+                        return ans;
+                    }
+                }
+                //没有修改过的页面不需要一直锁着
+                if(!held) bufferPool.releasePage(tid, pageId);
             }
-            if(!deleteFailed){
-                heapPage.markDirty(true, tid);
+            //所有页面都满了，在文件末尾加一个空页面，然后像其他页面一样插入
+            appendLock.lock();
+            try {
+                if(i == numPages()) writePage(new HeapPage(new HeapPageId(getId(), i), HeapPage.createEmptyPageData()));
+            } finally {
+                appendLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Deletes a tuple under a tuple lock instead of a page lock, see
+     * {@link #insertTupleLocked}.
+     */
+    private ArrayList<Page> deleteTupleLocked(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        RecordId recordId = t.getRecordId();
+        if(recordId == null || recordId.getPageId().getTableId() != getId())
+            throw new DbException("the tuple is not a member of this file");
+        BufferPool bufferPool = Database.getBufferPool();
+        TransactionHelp.getTransactionHelp().lockTuple(tid, recordId);
+        while(true){
+            HeapPage heapPage = (HeapPage) bufferPool.getPageForTupleUpdate(tid, recordId.getPageId());
+            synchronized(heapPage){
+                if(!bufferPool.isResident(heapPage)) continue;
+                heapPage.deleteTuple(t);
+                bufferPool.tupleDeleted(tid, heapPage, t);
+                ArrayList<Page> ans = new ArrayList<>();
                 ans.add(heapPage);
+                return ans;
             }
         }
-        return ans;
     }
 
     // see DbFile.java for javadocs
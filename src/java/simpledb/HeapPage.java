@@ -276,6 +276,30 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Adds the specified tuple to the page in the given slot;  the tuple
+     * should be updated to reflect that it is now stored on this page.
+     * Used when the caller has to choose the slot, e.g. to restore a deleted
+     * tuple in place.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     * @param t The tuple to add.
+     * @param slot The slot to store it in.
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
+        if(!t.getTupleDesc().equals(td) || slot < 0 || slot >= numSlots || isSlotUsed(slot))
+            throw new DbException("the slot is in use or tupleDesc is mismatch.");
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(pid, slot));
+        tuples[slot] = t;
+    }
+
+    /**
+     * Returns the number of slots on this page, used or not.
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
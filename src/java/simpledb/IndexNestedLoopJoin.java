@@ -0,0 +1,189 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins an outer child with a table that
+ * has a B+ tree on its join field.
+ * <p>
+ * Instead of scanning the inner table, the B+ tree is searched once for
+ * each outer tuple with an IndexPredicate on the value of the outer join
+ * field, so only the leaf pages holding matching tuples are read.  The
+ * inner child must be a SeqScan of a BTreeFile keyed on the join field,
+ * possibly under Filters, whose predicates are applied to the tuples
+ * found in the index.  NOT_EQUALS and LIKE cannot be evaluated with the
+ * index and are not supported.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child1, child2;
+    private final JoinPredicate pred;
+    private TupleDesc comboTD;
+
+    // 内表：B+树文件，扫描它的事务，和扫描上面的过滤条件
+    private BTreeFile file;
+    private TransactionId tid;
+    private List<Predicate> filters;
+    private final Predicate.Op probeOp;
+
+    transient private Tuple outer = null;
+    transient private DbFileIterator probe = null;
+
+    // for tests
+    int probes = 0;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join; a scan of
+     *            a B+ tree keyed on the join field, see {@link #canProbe}
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!canProbe(p, child2))
+            throw new IllegalArgumentException("the inner child cannot be probed with a B+ tree for " + p.getOperator());
+        this.pred = p;
+        this.probeOp = probeOp(p.getOperator());
+        setChildren(new OpIterator[]{child1, child2});
+    }
+
+    /**
+     * @return true if the tuples of the inner child matching an outer
+     *         tuple can be found with the B+ tree of its table
+     */
+    public static boolean canProbe(JoinPredicate p, OpIterator inner) {
+        return probeOp(p.getOperator()) != null && indexedScan(inner, p.getField2()) != null;
+    }
+
+    /**
+     * @return the scan under the filters of the child, if it is a scan of
+     *         a B+ tree keyed on the field; null otherwise
+     */
+    static SeqScan indexedScan(OpIterator child, int field) {
+        while (child instanceof Filter) child = ((Filter) child).getChildren()[0];
+        if (!(child instanceof SeqScan)) return null;
+        SeqScan scan = (SeqScan) child;
+        DbFile f = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field ? scan : null;
+    }
+
+    // outer op inner 改写成在内表键上的条件：inner op' outer
+    private static Predicate.Op probeOp(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+            return Predicate.Op.EQUALS;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return null;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        reset();
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    private void reset() {
+        if (probe != null) probe.close();
+        probe = null;
+        outer = null;
+        probes = 0;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(comboTD);
+        int td1n = t1.getTupleDesc().numFields();
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    private boolean passes(Tuple t) {
+        for (Predicate f : filters) {
+            if (!f.filter(t)) return false;
+        }
+        return true;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (probe != null) {
+                while (probe.hasNext()) {
+                    Tuple t2 = probe.next();
+                    if (passes(t2)) return merge(outer, t2);
+                }
+                probe.close();
+                probe = null;
+            }
+            if (!child1.hasNext()) return null;
+            outer = child1.next();
+            probe = file.indexIterator(tid, new IndexPredicate(probeOp, outer.getField(pred.getField1())));
+            probe.open();
+            probes++;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        SeqScan scan = indexedScan(child2, pred.getField2());
+        file = (BTreeFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        tid = scan.getTransactionId();
+        filters = new ArrayList<Predicate>();
+        for (OpIterator c = child2; c instanceof Filter; c = ((Filter) c).getChildren()[0]) {
+            filters.add(((Filter) c).getPredicate());
+        }
+    }
+}
@@ -4,17 +4,32 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loop join: it reads a block of outer tuples into
+ * memory, then scans the inner relation once for the whole block,
+ * comparing each inner tuple with every tuple of the block.  The inner
+ * relation is rescanned once per block instead of once per outer tuple.
+ * Any JoinPredicate operator is supported.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Default memory for the block of outer tuples, in bytes */
+    public static final int DEFAULT_BLOCK_BYTES = 1 << 20;
+
     private final OpIterator child1;
     private final OpIterator child2;
     private OpIterator[] children;
     private final JoinPredicate predicate;
-    private Tuple child1_next;
-    private Tuple child2_next;
+    private final int blockBytes;
+    private TupleDesc td;
+
+    // 当前块里的外表元组，和正在与块比较的内表元组
+    private final ArrayList<Tuple> block = new ArrayList<Tuple>();
+    private Tuple inner;
+    private int blockIndex;
+    private boolean innerScanned; // child2 has been read since it was opened or rewound
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -28,11 +43,25 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_BYTES);
+    }
+
+    /**
+     * Constructor for a join with a block of outer tuples of the given
+     * size.
+     *
+     * @param blockBytes
+     *            Memory for the block of outer tuples, in bytes; the block
+     *            holds at least one tuple
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockBytes) {
         // some code goes here
+        if (blockBytes <= 0) throw new IllegalArgumentException("block size must be positive");
         this.child1 = child1;
         this.child2 = child2;
         children = new OpIterator[]{child1, child2};
         this.predicate = p;
+        this.blockBytes = blockBytes;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -66,7 +95,13 @@ public class Join extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        if (td == null) td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        return td;
+    }
+
+    /** @return the number of outer tuples in a block */
+    int getBlockTuples() {
+        return Math.max(1, blockBytes / child1.getTupleDesc().getSize());
     }
 
     public void open() throws DbException, NoSuchElementException,
@@ -75,14 +110,14 @@ public class Join extends Operator {
         super.open();
         child1.open();
         child2.open();
+        reset();
     }
 
     public void close() {
         // some code goes here
         child2.close();
         child1.close();
-        child1_next = null;
-        child2_next = null;
+        reset();
         super.close();
     }
 
@@ -90,6 +125,14 @@ public class Join extends Operator {
         // some code goes here
         child1.rewind();
         child2.rewind();
+        reset();
+    }
+
+    private void reset() {
+        block.clear();
+        inner = null;
+        blockIndex = 0;
+        innerScanned = false;
     }
 
     /**
@@ -112,25 +155,47 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if(child1_next==null && child1.hasNext()) child1_next = child1.next();
-        while(child2.hasNext()){
-            child2_next = child2.next();
-            if(predicate.filter(child1_next, child2_next)){
-                Tuple tuple = new Tuple(getTupleDesc());
-                int i = 0;
-                Iterator<Field> fieldIterator_1 = child1_next.fields();
-                Iterator<Field> fieldIterator_2 = child2_next.fields();
-                while(fieldIterator_1.hasNext()) tuple.setField(i++, fieldIterator_1.next());
-                while(fieldIterator_2.hasNext()) tuple.setField(i++, fieldIterator_2.next());
-                return tuple;
+        while (true) {
+            //把当前内表元组和块中剩下的外表元组比较
+            if (inner != null) {
+                while (blockIndex < block.size()) {
+                    Tuple outer = block.get(blockIndex++);
+                    if (predicate.filter(outer, inner)) return merge(outer, inner);
+                }
+                inner = null;
             }
+            if (!block.isEmpty() && child2.hasNext()) {
+                inner = child2.next();
+                innerScanned = true;
+                blockIndex = 0;
+                continue;
+            }
+            //内表扫完了，读下一块外表元组
+            if (!nextBlock()) return null;
         }
-        child2.rewind();
-        if(child1.hasNext()){
-            child1_next = child1.next();
-            return fetchNext();
+    }
+
+    // 读下一块外表元组，没有了返回false；需要时把内表倒回开头
+    private boolean nextBlock() throws TransactionAbortedException, DbException {
+        block.clear();
+        int blockTuples = getBlockTuples();
+        while (block.size() < blockTuples && child1.hasNext()) block.add(child1.next());
+        if (block.isEmpty()) return false;
+        if (innerScanned) {
+            child2.rewind();
+            innerScanned = false;
         }
-        return null;
+        return true;
+    }
+
+    private Tuple merge(Tuple outer, Tuple inner) {
+        Tuple tuple = new Tuple(getTupleDesc());
+        int i = 0;
+        Iterator<Field> fieldIterator_1 = outer.fields();
+        Iterator<Field> fieldIterator_2 = inner.fields();
+        while(fieldIterator_1.hasNext()) tuple.setField(i++, fieldIterator_1.next());
+        while(fieldIterator_2.hasNext()) tuple.setField(i++, fieldIterator_2.next());
+        return tuple;
     }
 
     @Override
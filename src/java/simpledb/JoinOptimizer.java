@@ -69,7 +69,11 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        //内表是按连接字段建的B+树时，用外表的每个元组去查索引
+        if (!(lj instanceof LogicalSubplanJoinNode) && IndexNestedLoopJoin.canProbe(p, plan2))
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
@@ -103,6 +107,20 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * Estimate the cost of a join; when the right-hand side is a base table
+     * with a B+ tree on the join field, the join is an index nested-loop
+     * join, see {@link #instantiateJoin}.
+     *
+     * @param innerIsTable
+     *            Whether the right-hand side is a base table rather than
+     *            the result of other joins
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
@@ -112,10 +130,45 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
+            BTreeFile index = innerIsTable ? innerIndex(j) : null;
+            if (index != null) return estimateIndexJoinCost(j, index, card1, card2, cost1, cost2);
             return cost1+card1*cost2+1.0*card1*card2;
         }
     }
 
+    /**
+     * @return the B+ tree of the right-hand table of the join if it is keyed
+     *         on the join field and can evaluate the join operator; null
+     *         otherwise
+     */
+    private BTreeFile innerIndex(LogicalJoinNode j) {
+        if (j.t2Alias == null || p.getTableId(j.t2Alias) == null) return null;
+        if (j.p == Predicate.Op.NOT_EQUALS || j.p == Predicate.Op.LIKE) return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(p.getTableId(j.t2Alias));
+        if (!(f instanceof BTreeFile)) return null;
+        BTreeFile index = (BTreeFile) f;
+        return index.getTupleDesc().getFieldName(index.keyField()).equals(j.f2PureName) ? index : null;
+    }
+
+    /**
+     * Each outer tuple descends the B+ tree, one page per level, then reads
+     * the leaf pages holding its matches; the per-page cost is taken from
+     * the cost of scanning the whole table.
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, BTreeFile index, int card1, int card2,
+            double cost1, double cost2) {
+        int pages = Math.max(1, index.numPages());
+        double ioCostPerPage = cost2 / pages;
+        TupleDesc td = index.getTupleDesc();
+        int entryBits = td.getFieldType(index.keyField()).getLen() * 8 + BTreePage.INDEX_SIZE * 8 + 1;
+        int fanout = Math.max(2, BufferPool.getPageSize() * 8 / entryBits);
+        double height = 1 + Math.ceil(Math.log(pages) / Math.log(fanout));
+        int tuplesPerPage = Math.max(1, BufferPool.getPageSize() / td.getSize());
+        double matches = estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias, j.f1PureName,
+                j.f2PureName, card1, card2, false, false, null, null);
+        return cost1 + card1 * height * ioCostPerPage + matches / tuplesPerPage * ioCostPerPage + matches;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -312,6 +365,7 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        boolean leftIsTable = true, rightIsTable = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -347,6 +401,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                leftIsTable = false;
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -363,6 +418,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                rightIsTable = false;
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -376,10 +432,10 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, rightIsTable);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, leftIsTable);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
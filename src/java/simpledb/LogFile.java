@@ -3,7 +3,19 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -14,24 +26,96 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
+Many of the methods here hold the log's latch (to prevent concurrent log
+writes from happening); many of the methods in BufferPool hold the
+pool's latch (for similar reasons.)  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
 pages (on checkpoints and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+must take the pool's latch before the log's, with a block like:
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
+    BufferPool bp = lockWithBufferPool();
+    try {
 
        ..
 
-       }
+    } finally {
+       unlockWithBufferPool(bp);
     }
 </pre>
+
+Both latches are ReentrantLocks rather than monitors, so a virtual
+thread waiting for them or forcing the log does not pin its carrier.
+
+<u> Group commit: </u>
+<p>
+
+A commit must not return before its COMMIT record is on disk, but
+forcing the log once per commit caps throughput at the fsync rate.  So
+logCommit appends its record and then waits until some force covers it.
+The first waiting committer becomes the leader: it optionally waits up
+to the batch window for more committers to arrive (see {@link
+#setGroupCommit}), then forces the log without holding the latch, and
+wakes every committer whose record was written before the force began.
+Committers arriving during a force form the next batch.
+
+<u> Log buffer: </u>
+<p>
+
+Records are not written to the file field by field.  They are
+serialized into an in-memory log buffer, and their offsets in the log
+(which serve as LSNs) are assigned as if they had been written.  A
+background writer thread takes the whole buffer at a time, swapping in
+a spare one, and writes it with a single positional write; appenders
+only copy bytes.  A force only waits until the writer has written the
+records it must cover.  Anything that reads the log file or rewrites
+its header first drains the buffer with {@link #drain}.
+
+<u> Compression: </u>
+<p>
+
+With {@link #setCompression} on, the page images and deltas of UPDATE,
+DELTA and CLR records are deflated at the fastest level before they are
+appended, so padded string fields and empty slots cost little log
+bandwidth.  The appender compresses outside the latch, and a payload is
+only stored compressed if that makes it smaller.
+
+Truncating the log moves the offset of its first record forward in the
+header and removes the segments below it; no record is copied.
+
+<u> Recovery: </u>
+<p>
+
+BufferPool logs every page it writes before writing it, so recover()
+follows ARIES.  The analysis pass reads the log from the start of the last
+checkpoint, rebuilding the transaction table (transactions without a
+COMMIT or ABORT record are losers) and the dirty page table, which maps
+each page whose logged changes may not be on disk to the first record
+that changed it.  Only records from the oldest of those need redo, so
+restart reads and writes only the pages changed since.  The redo pass
+repeats history: records are grouped by page and the pages are split
+among several worker threads, each page being read once, brought up to
+date by its records in log order and written once, and only if that
+changed it.  Redo is physical, so it is idempotent, and pages need no
+LSN in their headers.  Finally the undo pass rolls the losers back,
+newest record first, writing a CLR per undone record so that a crash
+during recovery never undoes a record twice.
+
+<u> Checkpoints: </u>
+<p>
+
+Checkpoints are fuzzy.  A page is logged right before it is written,
+so dirty pages still in the buffer pool have no log records and need
+not be flushed; what a checkpoint must make durable are the pages that
+were written but may not have reached the disk yet.  The log keeps them
+in its dirty page table.  A checkpoint holds both latches only long
+enough to note where it begins and to copy the transaction table, then
+syncs the files of the tables in the dirty page table while holding no
+latch at all, so transactions keep running, and finally writes a
+checkpoint record with both tables.  Pages written after the checkpoint
+began stay in the dirty page table.
 */
 
 /**
@@ -39,11 +123,14 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself is a header of two long integers: the offset
+of the last written checkpoint, or -1 if there are no checkpoints, and
+the offset of the first record still in the log.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files next to the log file
+(see {@link LogSegments}).  Offsets are positions in the sequence of
+all records ever appended since the log was created, and do not change
+when the log is truncated.  Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
@@ -51,21 +138,44 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, CLR,
+BEGIN, and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  Page ids are written as
+a type tag and the id's fields (see {@link PageCodecs}), and the class
+of the page follows from its id.
+
+<li>DELTA RECORDS replace UPDATE records whenever they are smaller.  They
+consist of the page id and a {@link PageDelta}
+holding only the byte ranges that changed, with their before and after
+contents (see LogFile.writeDeltaData() and LogFile.readDeltaData()).
+
+<li>CLR (compensation log) RECORDS are written while an UPDATE or DELTA
+record is undone, and have the format of a DELTA record whose after
+contents are the restored bytes.  A transaction's CLRs undo its updates
+from the last one backwards, so their count tells recovery how many of
+them have already been undone.
+
+<li>With compression on, the payload of UPDATE, DELTA and CLR records
+(everything between the transaction id and the trailing offset) may be
+stored deflated.  The record type then has the COMPRESSED bit set, and
+the payload is an integer uncompressed length, an integer compressed
+length and the deflated bytes (see LogFile.compress()).
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
+the checkpoint began and their first log record on disk, followed by the
+dirty page table and the offset where the checkpoint began.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction; then an integer count of dirty pages, with
+the page id (see LogFile.writePageId()) and a long integer offset of the
+first record that may not be on disk for each one; then the long integer
+begin offset.
 
 </ul>
 
@@ -74,7 +184,9 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // the header
+    private final LogSegments segments;
+    private long logStart = 0; // offset of the first record still needed, protected by latch
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,17 +194,89 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
+    static final int COMPRESSED = 0x100; // flag in the type of records with a deflated payload
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    long currentOffset = -1;//protected by latch
 //    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
+    int totalRecords = 0; // for PatchTest //protected by latch
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    private final ReentrantLock latch = new ReentrantLock();
+
+    // group commit state, protected by latch
+    private final Condition forced = latch.newCondition();   // a force finished
+    private final Condition batchFull = latch.newCondition(); // enough committers are waiting
+    private long commitSeq = 0;  // number of commit records appended
+    private long durableSeq = 0; // number of commit records known to be on disk
+    private boolean forcing = false;
+    private int waitingCommits = 0;
+    private long groupCommitWindowNanos = 0;
+    private int groupCommitMaxBatch = DEFAULT_GROUP_COMMIT_BATCH;
+    private long numForces = 0;
+
+    /** Default number of committers a leader waits for within the batch window. */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 64;
+
+    /** Worker threads used by the redo pass of recovery. */
+    static final int REDO_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    // pid -> {recLSN, lastLSN}: pages written since the last checkpoint began,
+    // whose table files may not have been synced yet.  protected by latch
+    private final Map<PageId,long[]> dirtyPageTable = new HashMap<PageId,long[]>();
+
+    // what the last call to recover() did, for tests
+    int lastRedoPages = 0;    // pages redo brought up to date
+    int lastRedoRecords = 0;  // records redo applied
+    int lastUndoRecords = 0;  // records undone for losers
+
+    /** Payloads smaller than this are not worth compressing */
+    static final int MIN_COMPRESSED_PAYLOAD = 128;
+
+    private volatile boolean compress = false;
+
+    // 每个线程复用自己的Deflater/Inflater，避免每条记录都分配本地内存
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /** Buffered bytes at which appenders hand the log buffer to the writer. */
+    static final int WRITE_THRESHOLD = 1 << 16;
+
+    // 所有LogFile共用一个后台写线程
+    private static final ExecutorService LOG_WRITER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "simpledb-log-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** A growable byte buffer whose contents can be written without copying */
+    private static class LogBuffer extends ByteArrayOutputStream {
+        LogBuffer() {
+            super(WRITE_THRESHOLD);
+        }
+
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    // log buffer state, protected by latch
+    private final Condition written = latch.newCondition(); // the writer finished a write
+    private LogBuffer active = new LogBuffer();  // records not handed to the writer yet
+    private LogBuffer spare = new LogBuffer();   // null while the writer holds it
+    private DataOutputStream out = new DataOutputStream(active);
+    private long bufferStart = 0;   // file offset of the first byte in active
+    private long writtenOffset = 0; // every byte before this offset is in the file
+    private boolean writeScheduled = false;
+    private boolean writing = false;
+    private IOException writeError = null;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,8 +289,14 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor for a log with segment files of the given size. */
+    LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,16 +317,136 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.clear();
+            writeHeader(NO_CHECKPOINT_ID, 0);
+            resetBuffer(0);
+        }
+    }
+
+    // must hold latch. 写日志头并刷到磁盘
+    private void writeHeader(long checkpoint, long start) throws IOException {
+        raf.seek(0);
+        raf.writeLong(checkpoint);
+        raf.writeLong(start);
+        raf.getChannel().force(true);
+        logStart = start;
+    }
+
+    // must hold latch. 日志头中最后一个检查点的offset
+    private long readCheckpointOffset() throws IOException {
+        if (raf.length() < 2 * LONG_SIZE) return NO_CHECKPOINT_ID;
+        raf.seek(0);
+        return raf.readLong();
+    }
+
+    // must hold latch, with the buffer drained. 之后的记录从文件的offset处开始追加
+    private void resetBuffer(long offset) {
+        active.reset();
+        bufferStart = offset;
+        writtenOffset = offset;
+        currentOffset = offset;
+    }
+
+    // must hold latch. 下一条记录在日志中的offset，也就是它的LSN
+    private long appendOffset() {
+        return bufferStart + active.size();
+    }
+
+    // must hold latch. 记录追加完之后调用，缓冲区够大时交给写线程
+    private void recordAppended() {
+        currentOffset = appendOffset();
+        if (active.size() >= WRITE_THRESHOLD) scheduleWrite();
+    }
+
+    // must hold latch
+    private void scheduleWrite() {
+        if (writeScheduled || writing || active.size() == 0) return;
+        writeScheduled = true;
+        LOG_WRITER.execute(this::writeBuffered);
+    }
+
+    // 写线程：换下当前缓冲区，不持有latch地把它一次写进文件
+    private void writeBuffered() {
+        LogBuffer toWrite;
+        long position;
+        latch.lock();
+        try {
+            writeScheduled = false;
+            if (writing || active.size() == 0) return;
+            toWrite = active;
+            active = spare != null ? spare : new LogBuffer();
+            spare = null;
+            out = new DataOutputStream(active);
+            position = bufferStart;
+            bufferStart += toWrite.size();
+            writing = true;
+        } finally {
+            latch.unlock();
+        }
+        IOException error = null;
+        try {
+            segments.write(toWrite.contents(), position);
+        } catch (IOException e) {
+            error = e;
+        }
+        latch.lock();
+        try {
+            writing = false;
+            if (error == null) writtenOffset = position + toWrite.size();
+            else writeError = error;
+            toWrite.reset();
+            spare = toWrite;
+            written.signalAll();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    // must hold latch. 等写线程把end之前的记录都写进文件，等待时会放开latch
+    private void awaitWritten(long end) throws IOException {
+        while (writtenOffset < end) {
+            if (writeError != null) throw new IOException("log write failed", writeError);
+            scheduleWrite();
+            written.awaitUninterruptibly();
         }
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    /**
+     * Writes every buffered record to the file, without forcing it.  Must
+     * be called with the latch held before the file is read or written
+     * directly.
+     */
+    void drain() throws IOException {
+        while (writing) written.awaitUninterruptibly();
+        if (writeError != null) throw new IOException("log write failed", writeError);
+        if (active.size() > 0) {
+            segments.write(active.contents(), bufferStart);
+            bufferStart += active.size();
+            active.reset();
+        }
+        writtenOffset = bufferStart;
+    }
+
+    //先拿缓冲池的latch再拿日志的latch，与BufferPool写日志时的顺序一致
+    private BufferPool lockWithBufferPool() {
+        BufferPool bp = Database.getBufferPool();
+        bp.getLatch().lock();
+        latch.lock();
+        return bp;
+    }
+
+    private void unlockWithBufferPool(BufferPool bp) {
+        latch.unlock();
+        bp.getLatch().unlock();
+    }
+
+    public int getTotalRecords() {
+        latch.lock();
+        try {
+            return totalRecords;
+        } finally {
+            latch.unlock();
+        }
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -147,43 +457,48 @@ public class LogFile {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        BufferPool bp = lockWithBufferPool();
+        try {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
+            out.writeInt(ABORT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            recordAppended();
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
+        } finally {
+            unlockWithBufferPool(bp);
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until a (possibly shared) force of the log covers it.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        latch.lock();
+        try {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            recordAppended();
+            tidToFirstLogRecord.remove(tid.getId());
+            awaitDurable(++commitSeq);
+        } finally {
+            latch.unlock();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -192,265 +507,458 @@ public class LogFile {
         @param before The before image of the page
         @param after The after image of the page
 
+        If only a small part of the page changed, a DELTA record with
+        the changed byte ranges is written instead.
+
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
+        //锁外计算差异，日志里只记录修改过的字节
+        byte[] afterData = after.getPageData();
+        PageDelta delta = PageDelta.diff(before.getPageData(), afterData);
+        boolean useDelta = delta.getSerializedSize() < 2 * afterData.length;
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        if (useDelta) {
+            writeDeltaData(data, after.getId(), delta);
+        } else {
+            writePageData(data,before);
+            writePageData(data,after);
+        }
+        byte[] raw = payload.toByteArray();
+        byte[] compressed = compress(raw);
+        latch.lock();
+        try {
+            Debug.log("WRITE, offset = " + appendOffset());
+            preAppend();
+            /* update record conists of
+
+               record type
+               transaction id
+               before page data (see writePageData)
+               after page data
+               start offset
+
+               a delta record replaces the two images with the
+               page delta (see writeDeltaData)
+            */
+            pageLogged(after.getId(), currentOffset);
+            appendChange(useDelta ? DELTA_RECORD : UPDATE_RECORD, tid.getId(), raw, compressed);
+
+            Debug.log("WRITE OFFSET = " + currentOffset);
+        } finally {
+            latch.unlock();
+        }
+    }
 
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+    // must hold latch. 追加一条修改页面的记录，compressed不为null时写压缩后的数据
+    private void appendChange(int type, long tid, byte[] raw, byte[] compressed) throws IOException {
+        if (compressed != null) {
+            out.writeInt(type | COMPRESSED);
+            out.writeLong(tid);
+            out.writeInt(raw.length);
+            out.writeInt(compressed.length);
+            out.write(compressed);
+        } else {
+            out.writeInt(type);
+            out.writeLong(tid);
+            out.write(raw);
+        }
+        out.writeLong(currentOffset);
+        recordAppended();
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    /**
+     * Deflates the payload of a record.
+     *
+     * @return the compressed payload, or null if compression is off or
+     *     would not make it smaller
+     */
+    byte[] compress(byte[] raw) {
+        if (!compress || raw.length < MIN_COMPRESSED_PAYLOAD) return null;
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buf = new byte[raw.length];
+        int n = 0;
+        while (!deflater.finished() && n < buf.length) {
+            n += deflater.deflate(buf, n, buf.length - n);
+        }
+        return deflater.finished() && n < raw.length ? Arrays.copyOf(buf, n) : null;
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    // 读compress写的压缩数据，解压后返回
+    private static DataInput readCompressed(DataInput raf) throws IOException {
+        int rawLength = raf.readInt();
+        int length = raf.readInt();
+        if (rawLength < 0 || rawLength > 4 * BufferPool.getPageSize() || length < 0 || length > rawLength)
+            throw new StreamCorruptedException("bad compressed payload length " + length + "/" + rawLength);
+        byte[] compressed = new byte[length];
+        raf.readFully(compressed);
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] raw = new byte[rawLength];
+        try {
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, rawLength - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += read;
+            }
+            if (n != rawLength) throw new StreamCorruptedException("compressed payload is " + n + " bytes, expected " + rawLength);
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("bad compressed payload: " + e.getMessage());
+        }
+        return new DataInputStream(new ByteArrayInputStream(raw));
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /**
+     * Turns compression of page images and deltas in the log on or off.
+     * Records already in the log are read either way.
+     */
+    public void setCompression(boolean enabled) {
+        compress = enabled;
+    }
 
+    void writePageData(DataOutput raf, Page p) throws IOException{
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
+        // page id (see writePageId)
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+        writePageId(raf, p.getId());
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        //        Debug.log ("WROTE PAGE DATA, table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** The contents of a DELTA record, see readDeltaData */
+    static class DeltaRecord {
+        final PageId pid;
+        final PageDelta delta;
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        DeltaRecord(PageId pid, PageDelta delta) {
+            this.pid = pid;
+            this.delta = delta;
+        }
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+    void writeDeltaData(DataOutput raf, PageId pid, PageDelta delta)
+        throws IOException {
+        //delta data is:
+        // page id (see writePageId)
+        // page delta
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        writePageId(raf, pid);
+        delta.write(raf);
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    static DeltaRecord readDeltaData(DataInput raf) throws IOException {
+        PageId pid = readPageId(raf);
+        return new DeltaRecord(pid, PageDelta.read(raf));
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    // page id is a type tag and the id's fields, see PageCodecs
+    void writePageId(DataOutput raf, PageId pid) throws IOException {
+        PageCodecs.writePageId(raf, pid);
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    static PageId readPageId(DataInput raf) throws IOException {
+        return PageCodecs.readPageId(raf);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
+    Page readPageData(DataInput raf) throws IOException {
+        PageId pid = readPageId(raf);
+        return PageCodecs.decode(pid, readPageBytes(raf));
+    }
+
+    // 读writePageData写的页面字节，不重建页面
+    private static byte[] readPageBytes(DataInput raf) throws IOException {
+        int pageSize = raf.readInt();
+        if (pageSize < 0 || pageSize > BufferPool.getPageSize()) throw new StreamCorruptedException("bad page size " + pageSize);
 
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData);
+        return pageData;
     }
 
-    /** Write a BEGIN record for the specified transaction
-        @param tid The transaction that is beginning
+    /** A log record read back by rollback, recovery and print */
+    static class LogRecord {
+        final int type;
+        final long tid;
+        final long offset;
+        PageId pid;              // UPDATE
+        byte[] before;           // UPDATE
+        byte[] after;            // UPDATE
+        DeltaRecord delta;       // DELTA and CLR
+        Map<Long,Long> active;   // CHECKPOINT: tid -> first record
+        Map<PageId,Long> dirty;  // CHECKPOINT: pid -> recLSN
+        long checkpointBegin;    // CHECKPOINT
+
+        LogRecord(int type, long tid, long offset) {
+            this.type = type;
+            this.tid = tid;
+            this.offset = offset;
+        }
 
-    */
-    public synchronized  void logXactionBegin(TransactionId tid)
-        throws IOException {
-        Debug.log("BEGIN");
-        if(tidToFirstLogRecord.get(tid.getId()) != null){
-            System.err.printf("logXactionBegin: already began this tid\n");
-            throw new IOException("double logXactionBegin()");
+        boolean changesPage() {
+            return type == UPDATE_RECORD || type == DELTA_RECORD || type == CLR_RECORD;
+        }
+
+        PageId getPageId() {
+            return type == UPDATE_RECORD ? pid : delta.pid;
+        }
+
+        /** Applies the change of this record to a page image */
+        void redo(byte[] data) {
+            if (type == UPDATE_RECORD) System.arraycopy(after, 0, data, 0, data.length);
+            else delta.delta.redo(data);
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        /** Reverts the change of an UPDATE or DELTA record on a page image */
+        void undo(byte[] data) {
+            if (type == UPDATE_RECORD) System.arraycopy(before, 0, data, 0, data.length);
+            else delta.delta.undo(data);
+        }
+
+        public String toString() {
+            String[] names = {"?", "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT", "DELTA", "CLR"};
+            String s = offset + ": " + (type > 0 && type < names.length ? names[type] : "type " + type) + " tid " + tid;
+            if (changesPage()) s += " page " + getPageId();
+            if (active != null) s += " begin " + checkpointBegin + " active " + active + " dirty " + dirty;
+            return s;
+        }
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+    /**
+     * Reads the record at the current position of raf.
+     *
+     * @return the record, or null at the end of the log (including a record
+     *     cut short by a crash, and the stale bytes of a recycled segment)
+     */
+    static LogRecord readRecord(LogSegments.Reader raf) throws IOException {
+        try {
+            long offset = raf.getPosition();
+            int type = raf.readInt();
+            boolean compressed = (type & COMPRESSED) != 0;
+            type &= ~COMPRESSED;
+            if (type < ABORT_RECORD || type > CLR_RECORD) return null;
+            LogRecord record = new LogRecord(type, raf.readLong(), offset);
+            if (compressed && !record.changesPage()) return null;
+            DataInput payload = compressed ? readCompressed(raf) : raf;
+            switch (record.type) {
+            case UPDATE_RECORD:
+                //恢复只需要页面的字节，不重建页面
+                record.pid = readPageId(payload);
+                record.before = readPageBytes(payload);
+                if (!record.pid.equals(readPageId(payload))) return null;
+                record.after = readPageBytes(payload);
+                break;
+            case DELTA_RECORD:
+            case CLR_RECORD:
+                record.delta = readDeltaData(payload);
+                break;
+            case CHECKPOINT_RECORD:
+                record.active = new HashMap<Long,Long>();
+                int numXactions = raf.readInt();
+                while (numXactions-- > 0) {
+                    long xid = raf.readLong();
+                    record.active.put(xid, raf.readLong());
                 }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                record.dirty = new HashMap<PageId,Long>();
+                int numDirty = raf.readInt();
+                while (numDirty-- > 0) {
+                    PageId pid = readPageId(raf);
+                    record.dirty.put(pid, raf.readLong());
+                }
+                record.checkpointBegin = raf.readLong();
+                break;
             }
+            //每条记录以它自己的offset结尾，对不上就是旧段里残留的数据
+            return raf.readLong() == offset ? record : null;
+        } catch (EOFException | StreamCorruptedException e) {
+            return null;
         }
+    }
 
-        logTruncate();
+    /** Reads the record at the given offset, see readRecord */
+    LogRecord readRecordAt(long offset) throws IOException {
+        latch.lock();
+        try {
+            drain();
+            return readRecord(segments.reader(offset));
+        } finally {
+            latch.unlock();
+        }
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+    /** @return the number of bytes of the log written to its segments */
+    long getWrittenLength() {
+        return segments.getWrittenLength();
+    }
+
+    /** Write a BEGIN record for the specified transaction
+        @param tid The transaction that is beginning
+
+    */
+    public void logXactionBegin(TransactionId tid)
+        throws IOException {
+        latch.lock();
+        try {
+            Debug.log("BEGIN");
+            if(tidToFirstLogRecord.get(tid.getId()) != null){
+                System.err.printf("logXactionBegin: already began this tid\n");
+                throw new IOException("double logXactionBegin()");
+            }
+            preAppend();
+            out.writeInt(BEGIN_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            tidToFirstLogRecord.put(tid.getId(), currentOffset);
+            recordAppended();
+
+            Debug.log("BEGIN OFFSET = " + currentOffset);
+        } finally {
+            latch.unlock();
+        }
+    }
 
-        long minLogRecord = cpLoc;
+    /** Checkpoint the log and write a checkpoint record.
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        The checkpoint is fuzzy: transactions keep running while the
+        tables in the dirty page table are synced.
+    */
+    public void logCheckpoint() throws IOException {
+        long begin;
+        Map<Long,Long> active;
+        Set<Integer> tables = new HashSet<Integer>();
+        //make sure we have buffer pool lock before proceeding, so that
+        //every logged page has been written to its file
+        BufferPool bp = lockWithBufferPool();
+        try {
+            //Debug.log("CHECKPOINT, offset = " + appendOffset());
+            preAppend();
+            begin = appendOffset();
+            active = new HashMap<Long,Long>(tidToFirstLogRecord);
+            for (PageId pid : dirtyPageTable.keySet()) tables.add(pid.getTableId());
+        } finally {
+            unlockWithBufferPool(bp);
+        }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        //不持有latch，把begin之前写过的页面刷到磁盘
+        for (int tableId : tables) syncTable(tableId);
+
+        latch.lock();
+        try {
+            Iterator<Map.Entry<PageId,long[]>> it = dirtyPageTable.entrySet().iterator();
+            while (it.hasNext()) {
+                long[] lsns = it.next().getValue();
+                if (lsns[1] < begin) it.remove();
+                else if (lsns[0] < begin) lsns[0] = begin;
             }
 
-            int numOutstanding = raf.readInt();
+            long startCpOffset = appendOffset();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+            //write list of outstanding transactions
+            out.writeInt(active.size());
+            for (Map.Entry<Long,Long> entry : active.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + entry.getKey());
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            //write the dirty page table
+            out.writeInt(dirtyPageTable.size());
+            for (Map.Entry<PageId,long[]> entry : dirtyPageTable.entrySet()) {
+                writePageId(out, entry.getKey());
+                out.writeLong(entry.getValue()[0]);
             }
+            out.writeLong(begin);
+            out.writeLong(currentOffset);
+            recordAppended();
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            force();
+            writeHeader(startCpOffset, logStart);
+            //Debug.log("CP OFFSET = " + currentOffset);
+        } finally {
+            latch.unlock();
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        logTruncate();
+    }
 
-        raf.seek(minLogRecord);
+    // must hold latch. 记下一条修改了pid的记录
+    private void pageLogged(PageId pid, long offset) {
+        long[] lsns = dirtyPageTable.get(pid);
+        if (lsns == null) dirtyPageTable.put(pid, new long[] {offset, offset});
+        else lsns[1] = offset;
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+    // 把表文件中已经写入的页面强制刷到磁盘
+    private static void syncTable(int tableId) throws IOException {
+        DbFile table;
+        try {
+            table = Database.getCatalog().getDatabaseFile(tableId);
+        } catch (NoSuchElementException e) {
+            return; // the table is gone
+        }
+        File f = table instanceof HeapFile ? ((HeapFile) table).getFile()
+            : table instanceof BTreeFile ? ((BTreeFile) table).getFile() : null;
+        if (f == null || !f.exists()) return;
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
 
-                Debug.log("NEW START = " + newStart);
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption */
+    public void logTruncate() throws IOException {
+        latch.lock();
+        try {
+            //删除段之前等正在进行的组提交刷完
+            while (forcing) forced.awaitUninterruptibly();
+            preAppend();
+            drain();
+            long cpLoc = readCheckpointOffset();
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+            long minLogRecord = cpLoc;
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+            if (cpLoc != -1L) {
+                LogRecord cp = readRecord(segments.reader(cpLoc));
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+                if (cp == null || cp.type != CHECKPOINT_RECORD) {
+                    throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
                 }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+                //还要保留检查点开始之后、以及脏页表里的页面需要重做的记录
+                minLogRecord = Math.min(minLogRecord, cp.checkpointBegin);
+                for (long firstLogRecord : cp.active.values()) {
+                    minLogRecord = Math.min(minLogRecord, firstLogRecord);
+                }
+                for (long recLSN : cp.dirty.values()) {
+                    minLogRecord = Math.min(minLogRecord, recLSN);
+                }
             }
+            if (minLogRecord <= logStart) return;
+
+            // we can truncate everything before minLogRecord: offsets do
+            // not change, so only the header is rewritten and the segments
+            // below it are removed
+            Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord);
+            writeHeader(cpLoc, minLogRecord);
+            segments.removeBelow(minLogRecord);
+            //print();
+        } finally {
+            latch.unlock();
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -459,29 +967,82 @@ public class LogFile {
         transactions that have already committed (though this may not
         be enforced by this method.)
 
+        Each undone record gets a CLR; the caller forces the log.
+
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        BufferPool bp = lockWithBufferPool();
+        try {
+            preAppend();
+            drain();
+            Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+            if (firstRecord == null) throw new NoSuchElementException("no log records for " + tid);
+            List<LogRecord> updates = new ArrayList<LogRecord>();
+            int compensated = 0;
+            LogSegments.Reader in = segments.reader(firstRecord);
+            LogRecord record;
+            while ((record = readRecord(in)) != null) {
+                if (record.tid != tid.getId()) continue;
+                if (record.type == CLR_RECORD) compensated++;
+                else if (record.changesPage()) updates.add(record);
+            }
+            for (int i = updates.size() - 1 - compensated; i >= 0; i--) {
+                undo(updates.get(i), tid);
             }
+        } finally {
+            unlockWithBufferPool(bp);
         }
     }
 
+    // must hold latch. 把页面在磁盘上恢复成这条记录之前的内容，先追加一条CLR。
+    // 运行时回滚tid经过缓冲池写页面，让快照版本和乐观事务的页面计数看到这次修改；
+    // 重启恢复时tid为null，直接写文件
+    private void undo(LogRecord record, TransactionId tid) throws IOException {
+        PageId pid = record.getPageId();
+        byte[] data = readPageBytes(pid);
+        byte[] undone = data.clone();
+        record.undo(undone);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeDeltaData(new DataOutputStream(payload), pid, PageDelta.diff(data, undone));
+        byte[] raw = payload.toByteArray();
+        preAppend();
+        pageLogged(pid, currentOffset);
+        appendChange(CLR_RECORD, record.tid, raw, compress(raw));
+        if (tid != null) {
+            Database.getBufferPool().installPage(tid, PageCodecs.decode(pid, undone));
+        } else {
+            writePageBytes(pid, undone);
+            Database.getBufferPool().discardPage(pid);
+        }
+    }
+
+    // 页面在磁盘上的内容，文件末尾之后的页面是全零的空页
+    static byte[] readPageBytes(PageId pid) {
+        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        return page != null ? page.getPageData() : new byte[BufferPool.getPageSize()];
+    }
+
+    private void writePageBytes(PageId pid, byte[] data) throws IOException {
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(PageCodecs.decode(pid, data));
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        BufferPool bp = lockWithBufferPool();
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
+        } finally {
+            unlockWithBufferPool(bp);
         }
     }
 
@@ -490,21 +1051,275 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+        BufferPool bp = lockWithBufferPool();
+        try {
+            recoveryUndecided = false;
+            if (raf.length() < 2 * LONG_SIZE) {
+                segments.clear();
+                writeHeader(NO_CHECKPOINT_ID, 0);
+            }
+            raf.seek(LONG_SIZE);
+            logStart = raf.readLong();
+            tidToFirstLogRecord.clear();
+            dirtyPageTable.clear();
+
+            //analysis：从检查点开始重建事务表和脏页表
+            long cpLoc = readCheckpointOffset();
+            LogSegments.Reader in = segments.reader(logStart);
+            Map<Long,Long> transactions = new HashMap<Long,Long>(); // tid -> first record
+            Map<PageId,Long> dirtyPages = new HashMap<PageId,Long>(); // pid -> recLSN
+            if (cpLoc != NO_CHECKPOINT_ID) {
+                in.seek(cpLoc);
+                LogRecord cp = readRecord(in);
+                if (cp == null || cp.type != CHECKPOINT_RECORD)
+                    throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                transactions.putAll(cp.active);
+                dirtyPages.putAll(cp.dirty);
+                in.seek(cp.checkpointBegin);
+            }
+            long end = in.getPosition();
+            LogRecord record;
+            while ((record = readRecord(in)) != null) {
+                end = in.getPosition();
+                switch (record.type) {
+                case BEGIN_RECORD:
+                    transactions.put(record.tid, record.offset);
+                    break;
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    transactions.remove(record.tid);
+                    break;
+                case UPDATE_RECORD:
+                case DELTA_RECORD:
+                case CLR_RECORD:
+                    if (!transactions.containsKey(record.tid)) transactions.put(record.tid, record.offset);
+                    if (!dirtyPages.containsKey(record.getPageId())) dirtyPages.put(record.getPageId(), record.offset);
+                    break;
+                }
+            }
+            //日志末尾可能有半条记录，新的记录从最后一条完整记录之后开始追加
+            segments.truncate(end);
+            resetBuffer(end);
+
+            //在同步表文件之前，重做过的页面都还算脏页
+            for (Map.Entry<PageId,Long> entry : dirtyPages.entrySet()) {
+                pageLogged(entry.getKey(), entry.getValue());
             }
-         }
+            redo(dirtyPages);
+            undoLosers(transactions);
+            force();
+        } finally {
+            unlockWithBufferPool(bp);
+        }
+    }
+
+    // must hold latch. 按页面把记录分给几个工作线程并行重做，每个页面只读写一次
+    private void redo(Map<PageId,Long> dirtyPages) throws IOException {
+        lastRedoPages = 0;
+        lastRedoRecords = 0;
+        if (dirtyPages.isEmpty()) return;
+        //从最早的recLSN开始读，只保留脏页表里页面在recLSN之后的记录
+        List<LogRecord> changes = new ArrayList<LogRecord>();
+        LogSegments.Reader in = segments.reader(Collections.min(dirtyPages.values()));
+        LogRecord record;
+        while ((record = readRecord(in)) != null) {
+            if (record.changesPage() && dirtyPages.containsKey(record.getPageId())) changes.add(record);
+        }
+
+        int threads = Math.max(1, Math.min(REDO_THREADS, dirtyPages.size()));
+        List<Map<PageId,List<LogRecord>>> partitions = new ArrayList<Map<PageId,List<LogRecord>>>();
+        for (int i = 0; i < threads; i++) partitions.add(new HashMap<PageId,List<LogRecord>>());
+        int records = 0;
+        for (LogRecord r : changes) {
+            PageId pid = r.getPageId();
+            if (r.offset < dirtyPages.get(pid)) continue;
+            Map<PageId,List<LogRecord>> partition = partitions.get(Math.floorMod(pid.hashCode(), threads));
+            List<LogRecord> list = partition.get(pid);
+            if (list == null) {
+                list = new ArrayList<LogRecord>();
+                partition.put(pid, list);
+            }
+            list.add(r);
+            records++;
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> written = new ArrayList<Future<Integer>>();
+            for (final Map<PageId,List<LogRecord>> partition : partitions) {
+                written.add(workers.submit(() -> redoPartition(partition)));
+            }
+            int pages = 0;
+            for (Future<Integer> f : written) pages += f.get();
+            lastRedoPages = pages;
+            lastRedoRecords = records;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during redo", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("redo failed", e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+        for (PageId pid : dirtyPages.keySet()) Database.getBufferPool().discardPage(pid);
+    }
+
+    // 重做一个分区的页面，返回实际写回的页面数
+    private int redoPartition(Map<PageId,List<LogRecord>> partition) throws IOException {
+        int written = 0;
+        for (Map.Entry<PageId,List<LogRecord>> entry : partition.entrySet()) {
+            List<LogRecord> records = entry.getValue();
+            byte[] onDisk = readPageBytes(entry.getKey());
+            byte[] data = onDisk.clone();
+            for (LogRecord record : records) record.redo(data);
+            //页面已经是最新的就不用写
+            if (!Arrays.equals(onDisk, data)) {
+                writePageBytes(entry.getKey(), data);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    // must hold latch. 从最新的记录开始撤销所有失败事务的修改，最后为它们写ABORT记录
+    private void undoLosers(Map<Long,Long> losers) throws IOException {
+        lastUndoRecords = 0;
+        if (losers.isEmpty()) return;
+        drain();
+        Map<Long,List<LogRecord>> updates = new HashMap<Long,List<LogRecord>>();
+        Map<Long,Integer> compensated = new HashMap<Long,Integer>();
+        for (Long tid : losers.keySet()) {
+            updates.put(tid, new ArrayList<LogRecord>());
+            compensated.put(tid, 0);
+        }
+        LogSegments.Reader in = segments.reader(Collections.min(losers.values()));
+        LogRecord record;
+        while ((record = readRecord(in)) != null) {
+            if (!losers.containsKey(record.tid)) continue;
+            if (record.type == CLR_RECORD) compensated.put(record.tid, compensated.get(record.tid) + 1);
+            else if (record.changesPage()) updates.get(record.tid).add(record);
+        }
+        List<LogRecord> toUndo = new ArrayList<LogRecord>();
+        for (Long tid : losers.keySet()) {
+            List<LogRecord> list = updates.get(tid);
+            toUndo.addAll(list.subList(0, Math.max(0, list.size() - compensated.get(tid))));
+        }
+        toUndo.sort((a, b) -> Long.compare(b.offset, a.offset));
+        for (LogRecord r : toUndo) undo(r, null);
+        lastUndoRecords = toUndo.size();
+
+        for (Long tid : losers.keySet()) {
+            preAppend();
+            out.writeInt(ABORT_RECORD);
+            out.writeLong(tid);
+            out.writeLong(currentOffset);
+            recordAppended();
+        }
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        latch.lock();
+        try {
+            drain();
+            System.out.println("checkpoint at " + readCheckpointOffset() + ", log starts at " + logStart);
+            LogSegments.Reader in = segments.reader(logStart);
+            LogRecord record;
+            while ((record = readRecord(in)) != null) {
+                System.out.println(record);
+            }
+        } finally {
+            latch.unlock();
+        }
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    public void force() throws IOException {
+        latch.lock();
+        try {
+            //等正在进行的组提交刷完，再把所有记录刷到磁盘
+            while (forcing) forced.awaitUninterruptibly();
+            drain();
+            segments.force();
+            numForces++;
+            durableSeq = commitSeq;
+            forced.signalAll();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Configures group commit.
+     *
+     * @param window how long the committer that forces the log waits for
+     *     more committers to join its batch; 0 (the default) forces as soon
+     *     as the previous force is done
+     * @param unit the unit of window
+     * @param maxBatch the leader stops waiting once this many committers
+     *     are waiting
+     */
+    public void setGroupCommit(long window, TimeUnit unit, int maxBatch) {
+        if (window < 0 || maxBatch <= 0) throw new IllegalArgumentException("invalid group commit settings");
+        latch.lock();
+        try {
+            groupCommitWindowNanos = unit.toNanos(window);
+            groupCommitMaxBatch = maxBatch;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the number of times the log has been forced to disk */
+    public long getNumForces() {
+        latch.lock();
+        try {
+            return numForces;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    // must hold latch. 等到第seq条提交记录被刷到磁盘；没有其他线程在刷时自己当leader
+    private void awaitDurable(long seq) throws IOException {
+        waitingCommits++;
+        try {
+            if (waitingCommits >= groupCommitMaxBatch) batchFull.signal();
+            while (durableSeq < seq) {
+                if (forcing) {
+                    forced.awaitUninterruptibly();
+                    continue;
+                }
+                forcing = true;
+                try {
+                    long deadline = System.nanoTime() + groupCommitWindowNanos;
+                    long remaining = groupCommitWindowNanos;
+                    while (remaining > 0 && waitingCommits < groupCommitMaxBatch) {
+                        remaining = batchFull.awaitNanos(remaining);
+                        remaining = Math.min(remaining, deadline - System.nanoTime());
+                    }
+                    //在这之前追加的提交记录都会被这次force覆盖，先等写线程把它们写进文件
+                    long target = commitSeq;
+                    awaitWritten(appendOffset());
+                    latch.unlock();
+                    try {
+                        segments.force();
+                    } finally {
+                        latch.lock();
+                    }
+                    numForces++;
+                    durableSeq = Math.max(durableSeq, target);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for group commit", e);
+                } finally {
+                    forcing = false;
+                    forced.signalAll();
+                }
+            }
+        } finally {
+            waitingCommits--;
+        }
     }
 
 }
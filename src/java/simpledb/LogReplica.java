@@ -0,0 +1,286 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LogReplica keeps a read-only copy of another database up to date by
+ * tailing its log, the way a log-shipping replica follows its primary.
+ * Both databases may run in different processes on the same host: the
+ * replica only reads the primary's log file and segments.
+ * <p>
+ * The replica's catalog holds tables with the same names as the
+ * primary's; a table of the primary is identified by the file of that name
+ * in the primary's directory, as {@link Catalog#loadSchema} would open it.
+ * Log records of a transaction are kept in memory until its COMMIT
+ * record arrives, then its changes are redone on the replica's files under
+ * X locks of a replay transaction, so read-only queries on the replica
+ * see whole transactions, in commit order.  Records of aborted
+ * transactions are dropped.  Redo is physical and idempotent, so the
+ * replica's table files may be copied while the primary is running (see
+ * {@link #copyTables}), as long as the copy is taken after the replica
+ * was created: replay starts at the first record still in the primary's
+ * log, and every change since then is redone.
+ * <p>
+ * A committed transaction that changed a table of the primary with no
+ * table of that name in the replica's catalog stops replay: {@link
+ * #catchUp} fails before replaying it, and replay resumes from that
+ * transaction once the table is created, mapped or skipped.
+ * <p>
+ * If the primary truncates its log past the next record the replica
+ * needs, the replica cannot catch up any more and {@link #catchUp} fails;
+ * it must be created and copied again.
+ *
+ * @Threadsafe
+ */
+public class LogReplica {
+
+    private final File primaryLog;
+    private final File primaryDir;
+    private final LogSegments segments;
+    private final RandomAccessFile header;
+
+    // protected by this
+    private final LogSegments.Reader in;
+    private long position;  // offset of the next record to read
+    private final Map<Long, List<LogFile.LogRecord>> pending = new HashMap<>(); // tid -> records
+    private final Map<Integer, Integer> tableIds = new HashMap<>(); // primary -> replica table id
+    private long replayedTransactions = 0;
+
+    private Thread follower;
+    private volatile boolean stopped = true;
+    private volatile IOException failure = null;
+
+    /**
+     * Creates a replica of the database whose log and table files are in
+     * the given directory, starting at the first record of its log.
+     */
+    public LogReplica(File primaryDir) throws IOException {
+        this(new File(primaryDir, Database.LOGFILENAME), primaryDir, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param primaryLog the primary's log file
+     * @param primaryDir the directory of the primary's table files
+     * @param segmentSize the size of the primary's log segments
+     */
+    LogReplica(File primaryLog, File primaryDir, long segmentSize) throws IOException {
+        this.primaryLog = primaryLog;
+        this.primaryDir = primaryDir;
+        this.segments = new LogSegments(primaryLog, segmentSize);
+        this.header = new RandomAccessFile(primaryLog, "r");
+        this.position = readLogStart();
+        this.in = segments.reader(position);
+    }
+
+    // 主库日志头中第一条记录的offset，日志还没有写过时为0
+    private long readLogStart() throws IOException {
+        if (header.length() < 2 * LogFile.LONG_SIZE) return 0;
+        header.seek(LogFile.LONG_SIZE);
+        return header.readLong();
+    }
+
+    /**
+     * Replicates a table of the primary into a table of the replica,
+     * instead of matching tables by name.
+     */
+    synchronized void mapTable(int primaryTableId, int replicaTableId) {
+        tableIds.put(primaryTableId, replicaTableId);
+    }
+
+    /**
+     * Drops the changes to a table of the primary instead of replicating
+     * them.
+     */
+    synchronized void skipTable(int primaryTableId) {
+        tableIds.put(primaryTableId, null);
+    }
+
+    // 按表名把主库的表id对应到副本的表id，对应不上时报错而不是丢掉这些记录
+    private Integer replicaTable(int primaryTableId) throws IOException {
+        Integer id = tableIds.get(primaryTableId);
+        if (id != null || tableIds.containsKey(primaryTableId)) return id;
+        Catalog catalog = Database.getCatalog();
+        Iterator<Integer> it = catalog.tableIdIterator();
+        while (it.hasNext()) {
+            int tableId = it.next();
+            File f = new File(primaryDir, catalog.getTableName(tableId) + ".dat");
+            if (f.getAbsoluteFile().hashCode() == primaryTableId) id = tableId;
+        }
+        if (id == null) {
+            throw new IOException("no table of the replica matches table " + primaryTableId + " of the primary in "
+                                  + primaryDir);
+        }
+        tableIds.put(primaryTableId, id);
+        return id;
+    }
+
+    /**
+     * Copies the files of the primary's tables over the files of the
+     * replica's tables of the same names.  Must be called after the
+     * replica was created and before it replays anything.
+     */
+    public void copyTables() throws IOException {
+        Catalog catalog = Database.getCatalog();
+        Iterator<Integer> it = catalog.tableIdIterator();
+        while (it.hasNext()) {
+            int tableId = it.next();
+            DbFile table = catalog.getDatabaseFile(tableId);
+            File target = table instanceof HeapFile ? ((HeapFile) table).getFile()
+                : table instanceof BTreeFile ? ((BTreeFile) table).getFile() : null;
+            File source = new File(primaryDir, catalog.getTableName(tableId) + ".dat");
+            if (target == null || !source.exists() || source.getAbsoluteFile().equals(target.getAbsoluteFile())) continue;
+            Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads the records the primary has written since the last call and
+     * replays the transactions that committed.
+     *
+     * @return the number of transactions replayed
+     * @throws IOException if the primary truncated records the replica
+     *     has not read yet, or a committed transaction changed a table
+     *     that matches no table of the replica
+     */
+    public synchronized int catchUp() throws IOException {
+        long start = readLogStart();
+        if (position < start) {
+            throw new IOException("replica fell behind the log of " + primaryLog
+                                  + ": needs offset " + position + ", log starts at " + start);
+        }
+        int replayed = 0;
+        in.seek(position);
+        LogFile.LogRecord record;
+        try {
+            while ((record = LogFile.readRecord(in)) != null) {
+                switch (record.type) {
+                case LogFile.UPDATE_RECORD:
+                case LogFile.DELTA_RECORD:
+                case LogFile.CLR_RECORD:
+                    pending.computeIfAbsent(record.tid, k -> new ArrayList<>()).add(record);
+                    break;
+                case LogFile.COMMIT_RECORD:
+                    // 重放失败时留下这些记录，下次从这条COMMIT重新开始
+                    List<LogFile.LogRecord> records = pending.get(record.tid);
+                    if (records != null) replay(records);
+                    pending.remove(record.tid);
+                    replayed++;
+                    break;
+                case LogFile.ABORT_RECORD:
+                    pending.remove(record.tid);
+                    break;
+                }
+                position = in.getPosition();
+            }
+        } finally {
+            segments.closeBelow(position);
+            replayedTransactions += replayed;
+        }
+        return replayed;
+    }
+
+    // 在一个重放事务里加X锁、重做并写回一个已提交事务修改的页面，死锁时重试
+    private void replay(List<LogFile.LogRecord> records) throws IOException {
+        Map<PageId, List<LogFile.LogRecord>> pages = new LinkedHashMap<>();
+        for (LogFile.LogRecord r : records) {
+            Integer tableId = replicaTable(r.getPageId().getTableId());
+            if (tableId == null) continue;
+            PageId pid = PageCodecs.withTable(r.getPageId(), tableId);
+            pages.computeIfAbsent(pid, k -> new ArrayList<>()).add(r);
+        }
+        if (pages.isEmpty()) return;
+        BufferPool bp = Database.getBufferPool();
+        boolean done = false;
+        while (!done) {
+            TransactionId replay = new TransactionId();
+            try {
+                for (PageId pid : pages.keySet()) {
+                    TransactionHelp.getTransactionHelp().getLock(replay, pid, Permissions.READ_WRITE);
+                }
+                for (Map.Entry<PageId, List<LogFile.LogRecord>> entry : pages.entrySet()) {
+                    byte[] data = LogFile.readPageBytes(entry.getKey());
+                    for (LogFile.LogRecord r : entry.getValue()) r.redo(data);
+                    bp.installPage(replay, PageCodecs.decode(entry.getKey(), data));
+                }
+                done = true;
+            } catch (TransactionAbortedException e) {
+                // chosen to break a deadlock with a reader, try again
+            } finally {
+                bp.transactionComplete(replay, done);
+            }
+        }
+    }
+
+    /** @return the number of committed transactions replayed so far */
+    public synchronized long getReplayedTransactions() {
+        return replayedTransactions;
+    }
+
+    /** @return the offset in the primary's log of the next record to read */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * Starts a background thread that catches up with the primary every
+     * interval, until {@link #stop} is called or catching up fails.
+     */
+    public synchronized void start(long interval, TimeUnit unit) {
+        if (!stopped) return;
+        stopped = false;
+        failure = null;
+        long millis = Math.max(1, unit.toMillis(interval));
+        //不用interrupt停止线程：读日志时被中断会关掉段文件的channel
+        follower = new Thread(() -> {
+            try {
+                while (!stopped) {
+                    catchUp();
+                    synchronized (this) {
+                        if (!stopped) wait(millis);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stop
+            } catch (IOException e) {
+                failure = e;
+                stopped = true;
+            }
+        }, "simpledb-log-replica");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /** Stops the background thread and waits for it to finish. */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            stopped = true;
+            t = follower;
+            follower = null;
+            notifyAll();
+        }
+        if (t != null) t.join();
+    }
+
+    /** @return the error that stopped the background thread, or null */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /** Stops following the primary and closes its log. */
+    public void close() throws IOException {
+        try {
+            stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            segments.close();
+            header.close();
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LogSegments stores the records of a {@link LogFile} in a sequence of
+ * fixed-size segment files next to it, named after the log file followed
+ * by the segment number.  A log offset (LSN) maps to segment
+ * offset / segmentSize, at position offset % segmentSize; offsets never
+ * change, so truncating the log only removes whole segments below the
+ * oldest offset still needed.
+ * <p>
+ * A removed segment is recycled as the next segment when there is no next
+ * segment yet, and otherwise deleted.  When a segment is first written,
+ * the next one is preallocated in the background by filling it with
+ * zeros, so appends do not grow files.  Recycled and preallocated segments
+ * contain stale bytes or zeros after the end of the log; readers tell
+ * them apart from records because every record ends with its own offset.
+ *
+ * @Threadsafe
+ */
+class LogSegments {
+
+    /** Default size of a segment file in bytes */
+    static final long DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    // 所有日志共用一个后台线程预分配下一个段
+    private static final ExecutorService PREALLOCATOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "simpledb-log-preallocator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final File dir;
+    private final String name;
+    private final long segmentSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Long, FileChannel> open = new TreeMap<>(); // protected by lock
+    private final Set<FileChannel> unforced = new HashSet<>();       // protected by lock
+    private long written = 0; // end of the furthest write, protected by lock
+    private long removedBelow = 0; // segments below this were removed, protected by lock
+
+    /**
+     * @param logFile the log file; segments are created in its directory
+     * @param segmentSize the size of each segment file in bytes
+     */
+    LogSegments(File logFile, long segmentSize) {
+        if (segmentSize <= 0) throw new IllegalArgumentException("segment size must be positive");
+        this.dir = logFile.getAbsoluteFile().getParentFile();
+        this.name = logFile.getName();
+        this.segmentSize = segmentSize;
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    File segmentFile(long segment) {
+        return new File(dir, name + "." + segment);
+    }
+
+    /** @return the numbers of the segment files on disk, in order */
+    SortedSet<Long> segmentsOnDisk() {
+        SortedSet<Long> segments = new TreeSet<>();
+        String[] files = dir.list();
+        if (files == null) return segments;
+        for (String f : files) {
+            if (!f.startsWith(name + ".")) continue;
+            String suffix = f.substring(name.length() + 1);
+            if (suffix.isEmpty() || !suffix.chars().allMatch(Character::isDigit)) continue;
+            segments.add(Long.parseLong(suffix));
+        }
+        return segments;
+    }
+
+    // must hold lock
+    private FileChannel channel(long segment, boolean create) throws IOException {
+        FileChannel channel = open.get(segment);
+        if (channel != null) return channel;
+        File f = segmentFile(segment);
+        if (!create && !f.exists()) return null;
+        channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        open.put(segment, channel);
+        if (create && !segmentFile(segment + 1).exists()) {
+            PREALLOCATOR.execute(() -> preallocate(segment + 1));
+        }
+        return channel;
+    }
+
+    // 在临时文件里填满零再改名，不会让写日志的线程等待
+    private void preallocate(long segment) {
+        File tmp = new File(dir, name + "." + segment + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                                                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(segmentSize, 1 << 16));
+                long position = 0;
+                while (position < segmentSize) {
+                    zeros.clear();
+                    zeros.limit((int) Math.min(zeros.capacity(), segmentSize - position));
+                    position += channel.write(zeros, position);
+                }
+            }
+            lock.lock();
+            try {
+                File f = segmentFile(segment);
+                if (segment < removedBelow || open.containsKey(segment) || f.exists() || !tmp.renameTo(f)) tmp.delete();
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            tmp.delete(); // the segment is created on demand instead
+        }
+    }
+
+    /** Writes bytes to the log at the given offset, without forcing them. */
+    void write(ByteBuffer bytes, long offset) throws IOException {
+        lock.lock();
+        try {
+            while (bytes.hasRemaining()) {
+                long segment = offset / segmentSize;
+                int inSegment = (int) Math.min(bytes.remaining(), segmentSize - offset % segmentSize);
+                ByteBuffer part = bytes.slice();
+                part.limit(inSegment);
+                FileChannel channel = channel(segment, true);
+                long position = offset % segmentSize;
+                while (part.hasRemaining()) position += channel.write(part, position);
+                unforced.add(channel);
+                bytes.position(bytes.position() + inSegment);
+                offset += inSegment;
+            }
+            written = Math.max(written, offset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forces every segment written since the last force to disk. */
+    void force() throws IOException {
+        List<FileChannel> toForce;
+        lock.lock();
+        try {
+            toForce = new ArrayList<>(unforced);
+            unforced.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (FileChannel channel : toForce) channel.force(true);
+    }
+
+    /** @return the end of the furthest write since the log was reset */
+    long getWrittenLength() {
+        lock.lock();
+        try {
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads bytes of the log at the given offset.
+     *
+     * @return the number of bytes read, or -1 if the offset is past the
+     *     last segment
+     */
+    int read(ByteBuffer dst, long offset) throws IOException {
+        lock.lock();
+        try {
+            FileChannel channel = channel(offset / segmentSize, false);
+            if (channel == null) return -1;
+            ByteBuffer part = dst.slice();
+            part.limit((int) Math.min(part.remaining(), segmentSize - offset % segmentSize));
+            int n = channel.read(part, offset % segmentSize);
+            if (n > 0) dst.position(dst.position() + n);
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the segments holding only offsets below the given one.  The
+     * first of them is recycled as the segment after the last one if that
+     * does not exist yet.
+     */
+    void removeBelow(long offset) throws IOException {
+        lock.lock();
+        try {
+            removedBelow = Math.max(removedBelow, offset / segmentSize);
+            SortedSet<Long> segments = segmentsOnDisk();
+            if (segments.isEmpty()) return;
+            long next = segments.last() + 1;
+            for (long segment : segments.headSet(offset / segmentSize)) {
+                FileChannel channel = open.remove(segment);
+                if (channel != null) {
+                    unforced.remove(channel);
+                    channel.close();
+                }
+                File f = segmentFile(segment);
+                File target = segmentFile(next);
+                if (target.exists() || !f.renameTo(target)) f.delete();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cuts the log at the given offset: the rest of its segment is cleared
+     * and later segments are deleted, so that no stale record follows the
+     * records appended from there.
+     */
+    void truncate(long offset) throws IOException {
+        lock.lock();
+        try {
+            long last = offset / segmentSize;
+            for (long segment : segmentsOnDisk().tailSet(last + 1)) {
+                FileChannel channel = open.remove(segment);
+                if (channel != null) {
+                    unforced.remove(channel);
+                    channel.close();
+                }
+                segmentFile(segment).delete();
+            }
+            FileChannel channel = channel(last, false);
+            if (channel != null) {
+                channel.truncate(offset % segmentSize);
+                unforced.add(channel);
+            }
+            written = offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the open files of the segments holding only offsets below the
+     * given one, which a reader of the log has passed.
+     */
+    void closeBelow(long offset) throws IOException {
+        lock.lock();
+        try {
+            Map<Long, FileChannel> passed = open.headMap(offset / segmentSize);
+            for (FileChannel channel : passed.values()) {
+                unforced.remove(channel);
+                channel.close();
+            }
+            passed.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Deletes every segment. */
+    void clear() throws IOException {
+        lock.lock();
+        try {
+            close();
+            for (long segment : segmentsOnDisk()) segmentFile(segment).delete();
+            written = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Closes the open segment files. */
+    void close() throws IOException {
+        lock.lock();
+        try {
+            for (FileChannel channel : open.values()) channel.close();
+            open.clear();
+            unforced.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return a reader positioned at the given offset of the log */
+    Reader reader(long offset) {
+        return new Reader(new SegmentInput(offset));
+    }
+
+    /** Reads the log sequentially, keeping track of its offset */
+    static class Reader extends DataInputStream {
+        private final SegmentInput input;
+
+        private Reader(SegmentInput input) {
+            super(input);
+            this.input = input;
+        }
+
+        /** @return the offset of the next byte to be read */
+        long getPosition() {
+            return input.position;
+        }
+
+        void seek(long offset) {
+            input.seek(offset);
+        }
+    }
+
+    private class SegmentInput extends InputStream {
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 13);
+        private long position;       // offset of the next byte returned
+        private boolean eof = false;
+
+        SegmentInput(long position) {
+            this.position = position;
+            buffer.limit(0);
+        }
+
+        void seek(long offset) {
+            position = offset;
+            buffer.limit(0);
+            eof = false;
+        }
+
+        // 缓冲区读完时从position处接着读
+        private boolean fill() throws IOException {
+            if (buffer.hasRemaining()) return true;
+            if (eof) return false;
+            buffer.clear();
+            int n = LogSegments.this.read(buffer, position);
+            buffer.flip();
+            if (n <= 0) {
+                eof = true;
+                return false;
+            }
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            position++;
+            return buffer.get() & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            position += n;
+            return n;
+        }
+    }
+}
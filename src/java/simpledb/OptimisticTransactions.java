@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OptimisticTransactions keeps the state of transactions running under
+ * optimistic concurrency control (OCC).
+ * <p>
+ * An optimistic transaction takes no locks while it runs.  Every page it
+ * reads is copied from disk, which always holds the latest committed version
+ * (pages are forced at commit and never stolen), into a private workspace,
+ * together with the version number the page had at that moment.  Its inserts
+ * and deletes change only these copies, so nothing it does is visible to
+ * anybody else.  At commit the BufferPool checks that no page in the
+ * workspace has been written since it was copied, and then writes the
+ * changed copies; if validation fails the transaction is aborted instead.
+ * <p>
+ * Page version numbers work like a sequence lock: the BufferPool makes the
+ * number odd before it writes a page and even again afterwards, so a copy
+ * can be taken without any lock and is simply retaken if a write overlapped
+ * it.
+ *
+ * @see BufferPool#beginOptimistic
+ * @Threadsafe
+ */
+public class OptimisticTransactions {
+
+    /** The private pages of one optimistic transaction */
+    private static class Workspace {
+        final Map<PageId, Page> pages = new ConcurrentHashMap<>();
+        final Map<PageId, Long> observed = new ConcurrentHashMap<>(); //页面被复制时的版本号
+    }
+
+    private final Map<TransactionId, Workspace> workspaces = new ConcurrentHashMap<>();
+    private final Map<PageId, AtomicLong> pageVersions = new ConcurrentHashMap<>();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong aborts = new AtomicLong();
+
+    /** Makes tid an optimistic transaction with an empty workspace. */
+    public void begin(TransactionId tid) {
+        workspaces.putIfAbsent(tid, new Workspace());
+    }
+
+    /** @return true if tid is a running optimistic transaction */
+    public boolean isOptimistic(TransactionId tid) {
+        return workspaces.containsKey(tid);
+    }
+
+    /**
+     * Returns tid's private copy of a page, copying the committed version
+     * from disk the first time.
+     *
+     * @throws DbException if the page does not exist
+     */
+    public Page read(TransactionId tid, PageId pid) throws DbException {
+        Workspace ws = workspaces.get(tid);
+        if (ws == null) throw new DbException("not an optimistic transaction");
+        Page page = ws.pages.get(pid);
+        if (page != null) return page;
+
+        AtomicLong version = pageVersions.computeIfAbsent(pid, k -> new AtomicLong());
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        long before;
+        while (true) {
+            before = version.get();
+            if ((before & 1) != 0) {
+                //正在写这个页面，等它写完
+                Thread.yield();
+                continue;
+            }
+            page = file.readPage(pid);
+            if (version.get() == before) break;
+        }
+        if (page == null) throw new DbException("page " + pid.getPageNumber() + " does not exist");
+        ws.pages.put(pid, page);
+        ws.observed.put(pid, before);
+        return page;
+    }
+
+    /** Called by the BufferPool right before it writes a page to disk. */
+    public void beforeWrite(PageId pid) {
+        pageVersions.computeIfAbsent(pid, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /** Called by the BufferPool right after it wrote a page to disk. */
+    public void afterWrite(PageId pid) {
+        pageVersions.get(pid).incrementAndGet();
+    }
+
+    /** @return the pages tid has changed, in table and page number order */
+    public List<Page> getWriteSet(TransactionId tid) {
+        Workspace ws = workspaces.get(tid);
+        List<Page> ans = new ArrayList<>();
+        if (ws == null) return ans;
+        for (Page page : ws.pages.values()) {
+            if (page.isDirty() != null) ans.add(page);
+        }
+        //按固定顺序加锁，减少提交时的死锁
+        ans.sort(Comparator.comparingInt((Page p) -> p.getId().getTableId())
+                .thenComparingInt(p -> p.getId().getPageNumber()));
+        return ans;
+    }
+
+    /**
+     * Checks that no page tid has read was written since it was copied.
+     * The caller must prevent concurrent writes while it validates and
+     * writes the write set.
+     */
+    public boolean validate(TransactionId tid) {
+        Workspace ws = workspaces.get(tid);
+        if (ws == null) return false;
+        for (Map.Entry<PageId, Long> entry : ws.observed.entrySet()) {
+            AtomicLong version = pageVersions.get(entry.getKey());
+            if (version == null || version.get() != entry.getValue()) return false;
+        }
+        return true;
+    }
+
+    /** Drops the workspace of tid when it commits or aborts. */
+    public void end(TransactionId tid, boolean committed) {
+        if (workspaces.remove(tid) == null) return;
+        if (committed) commits.incrementAndGet();
+        else aborts.incrementAndGet();
+    }
+
+    /** @return the number of optimistic transactions that committed */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /** @return the number of optimistic transactions that aborted */
+    public long getAborts() {
+        return aborts.get();
+    }
+}
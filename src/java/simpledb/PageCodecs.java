@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PageCodecs gives every PageId implementation a one-byte type tag, with
+ * factories that rebuild an id from the fields returned by
+ * {@link PageId#serialize} and a page from its id and bytes, the same way
+ * its DbFile would after reading them from disk.  The class of a page
+ * follows from its id: a HeapPageId names a HeapPage, and a BTreePageId
+ * names a B+ tree page of its category.
+ * <p>
+ * The log writes a tag instead of class names, and recovery, rollback and
+ * the compressed page cache rebuild pages without reflection.  New page
+ * types are added with {@link #register}.
+ *
+ * @Threadsafe
+ */
+public final class PageCodecs {
+
+    /** Rebuilds a page id from its serialized fields */
+    public interface IdFactory {
+        PageId create(int[] fields);
+    }
+
+    /** Rebuilds a page from its id and bytes */
+    public interface PageFactory {
+        Page create(PageId pid, byte[] data) throws IOException;
+    }
+
+    public static final byte HEAP = 1;
+    public static final byte BTREE = 2;
+
+    private static class Codec {
+        final byte tag;
+        final int numFields;
+        final IdFactory ids;
+        final PageFactory pages;
+
+        Codec(byte tag, int numFields, IdFactory ids, PageFactory pages) {
+            this.tag = tag;
+            this.numFields = numFields;
+            this.ids = ids;
+            this.pages = pages;
+        }
+    }
+
+    private static final Codec[] byTag = new Codec[256];
+    private static final Map<Class<?>, Codec> byClass = new ConcurrentHashMap<>();
+
+    static {
+        register(HEAP, HeapPageId.class, 2,
+                 f -> new HeapPageId(f[0], f[1]),
+                 (pid, data) -> new HeapPage((HeapPageId) pid, data));
+        register(BTREE, BTreePageId.class, 3,
+                 f -> new BTreePageId(f[0], f[1], f[2]),
+                 PageCodecs::decodeBTreePage);
+    }
+
+    private PageCodecs() {
+    }
+
+    /**
+     * Registers a PageId implementation.
+     *
+     * @param tag the tag written for ids of this class
+     * @param idClass the class of the ids
+     * @param numFields the number of fields serialize() returns
+     * @throws IllegalArgumentException if the tag or the class is already registered
+     */
+    public static synchronized void register(byte tag, Class<? extends PageId> idClass, int numFields,
+                                             IdFactory ids, PageFactory pages) {
+        if (byTag[tag & 0xff] != null || byClass.containsKey(idClass))
+            throw new IllegalArgumentException("page id type " + idClass.getName() + " or tag " + tag + " already registered");
+        Codec codec = new Codec(tag, numFields, ids, pages);
+        byTag[tag & 0xff] = codec;
+        byClass.put(idClass, codec);
+    }
+
+    private static Codec codec(PageId pid) {
+        Codec codec = byClass.get(pid.getClass());
+        if (codec == null) throw new IllegalArgumentException("no codec for page id type " + pid.getClass().getName());
+        return codec;
+    }
+
+    /** Writes the tag and fields of a page id. */
+    public static void writePageId(DataOutput out, PageId pid) throws IOException {
+        Codec codec = codec(pid);
+        int[] fields = pid.serialize();
+        out.writeByte(codec.tag);
+        for (int i = 0; i < codec.numFields; i++) {
+            out.writeInt(fields[i]);
+        }
+    }
+
+    /**
+     * Reads a page id written by writePageId.
+     *
+     * @throws StreamCorruptedException if the tag is not registered
+     */
+    public static PageId readPageId(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+        Codec codec = byTag[tag];
+        if (codec == null) throw new StreamCorruptedException("unknown page id tag " + tag);
+        int[] fields = new int[codec.numFields];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = in.readInt();
+        }
+        return codec.ids.create(fields);
+    }
+
+    /**
+     * @return the id of the same page in another table; the table id is
+     *     the first of the fields of every registered id type
+     */
+    public static PageId withTable(PageId pid, int tableId) {
+        int[] fields = pid.serialize();
+        fields[0] = tableId;
+        return codec(pid).ids.create(fields);
+    }
+
+    /** Rebuilds the page with the given id from its bytes. */
+    public static Page decode(PageId pid, byte[] data) throws IOException {
+        return codec(pid).pages.create(pid, data);
+    }
+
+    private static Page decodeBTreePage(PageId pid, byte[] data) throws IOException {
+        BTreePageId id = (BTreePageId) pid;
+        int keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+        switch (id.pgcateg()) {
+            case BTreePageId.ROOT_PTR: return new BTreeRootPtrPage(id, data);
+            case BTreePageId.INTERNAL: return new BTreeInternalPage(id, data, keyField);
+            case BTreePageId.LEAF: return new BTreeLeafPage(id, data, keyField);
+            default: return new BTreeHeaderPage(id, data);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageDelta is the physical difference between two images of a page: the
+ * byte ranges that changed, with their old and new contents.
+ * <p>
+ * Inserting or deleting a tuple changes one bit of the page header and the
+ * bytes of one slot, and changing a field changes a few bytes, so a delta is
+ * usually a small fraction of the page size.  The log stores deltas instead
+ * of whole before and after images when they are smaller; redo applies the
+ * new bytes and undo the old ones.
+ */
+public class PageDelta {
+
+    /** Changed ranges closer than this are merged into one */
+    private static final int MERGE_GAP = 8;
+
+    private final int pageLength;
+    private final List<Integer> offsets = new ArrayList<>();
+    private final List<byte[]> before = new ArrayList<>();
+    private final List<byte[]> after = new ArrayList<>();
+
+    private PageDelta(int pageLength) {
+        this.pageLength = pageLength;
+    }
+
+    /**
+     * Computes the delta turning one page image into another.
+     *
+     * @throws IllegalArgumentException if the images have different sizes
+     */
+    public static PageDelta diff(byte[] oldData, byte[] newData) {
+        if (oldData.length != newData.length) throw new IllegalArgumentException("page images differ in size");
+        PageDelta delta = new PageDelta(oldData.length);
+        int i = 0;
+        while (i < oldData.length) {
+            if (oldData[i] == newData[i]) {
+                i++;
+                continue;
+            }
+            //找到这一段修改的结尾，间隔很小的两段合并成一段
+            int start = i;
+            int end = i + 1;
+            int j = end;
+            while (j < oldData.length && j - end < MERGE_GAP) {
+                if (oldData[j] != newData[j]) end = j + 1;
+                j++;
+            }
+            delta.offsets.add(start);
+            delta.before.add(Arrays.copyOfRange(oldData, start, end));
+            delta.after.add(Arrays.copyOfRange(newData, start, end));
+            i = end;
+        }
+        return delta;
+    }
+
+    /** @return the number of changed byte ranges */
+    public int getNumRanges() {
+        return offsets.size();
+    }
+
+    /** @return the number of bytes write() produces */
+    public int getSerializedSize() {
+        int size = 2 * 4;
+        for (byte[] b : before) size += 2 * 4 + 2 * b.length;
+        return size;
+    }
+
+    /** Applies the new contents of every range to a page image. */
+    public void redo(byte[] data) {
+        apply(data, after);
+    }
+
+    /** Applies the old contents of every range to a page image. */
+    public void undo(byte[] data) {
+        apply(data, before);
+    }
+
+    private void apply(byte[] data, List<byte[]> contents) {
+        if (data.length != pageLength) throw new IllegalArgumentException("page image has the wrong size");
+        for (int i = 0; i < offsets.size(); i++) {
+            byte[] b = contents.get(i);
+            System.arraycopy(b, 0, data, offsets.get(i), b.length);
+        }
+    }
+
+    /** Serializes this delta; see {@link #read}. */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(pageLength);
+        out.writeInt(offsets.size());
+        for (int i = 0; i < offsets.size(); i++) {
+            out.writeInt(offsets.get(i));
+            out.writeInt(before.get(i).length);
+            out.write(before.get(i));
+            out.write(after.get(i));
+        }
+    }
+
+    /**
+     * Reads a delta written by {@link #write}.
+     *
+     * @throws StreamCorruptedException if the input is not a delta
+     */
+    public static PageDelta read(DataInput in) throws IOException {
+        PageDelta delta = new PageDelta(in.readInt());
+        int n = in.readInt();
+        if (delta.pageLength < 0 || n < 0 || n > delta.pageLength) throw new StreamCorruptedException("bad page delta");
+        for (int i = 0; i < n; i++) {
+            int offset = in.readInt();
+            int length = in.readInt();
+            if (offset < 0 || length < 0 || length > delta.pageLength - offset) throw new StreamCorruptedException("bad page delta");
+            delta.offsets.add(offset);
+            byte[] b = new byte[length];
+            byte[] a = new byte[length];
+            in.readFully(b);
+            in.readFully(a);
+            delta.before.add(b);
+            delta.after.add(a);
+        }
+        return delta;
+    }
+}
@@ -0,0 +1,214 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PageVersionStore keeps old committed versions of pages so that snapshot
+ * transactions can read a consistent state of the database without taking
+ * any lock.
+ * <p>
+ * A snapshot transaction sees the database as of the last commit before it
+ * began.  Since pages are forced to disk at commit and uncommitted pages are
+ * never written (NO STEAL), the disk always holds the latest committed
+ * version of a page.  So whenever the BufferPool overwrites a page on disk,
+ * the store first saves the version it replaces, tagged with the writing
+ * transaction.  When that transaction ends it gets a commit number, and the
+ * saved versions are marked as superseded at that number.  A snapshot that
+ * began before the commit reads the saved version; later snapshots read the
+ * page from disk.  Versions are dropped once no running snapshot can need
+ * them; they are indexed by the commit that superseded them, so dropping
+ * them only visits the versions dropped.
+ * <p>
+ * There is no fixed cap on the number of versions kept: it is the number of
+ * page writes committed since the oldest running snapshot began, plus the
+ * pages overwritten by transactions still running.  A long-running snapshot
+ * therefore keeps every page version it may read in memory until it ends;
+ * {@link #getNumVersions} reports the current count.
+ * <p>
+ * Pages handed to snapshot transactions are never modified, so they are
+ * shared between snapshots, and the latest committed versions read from disk
+ * are kept in a small LRU cache.
+ *
+ * @see BufferPool#setSnapshotIsolation
+ * @Threadsafe
+ */
+public class PageVersionStore {
+
+    /** A saved page version, valid for snapshots older than supersededAt */
+    private static class Version {
+        final Page page;
+        long supersededAt = Long.MAX_VALUE; //还没有提交时为MAX_VALUE
+
+        Version(Page page) {
+            this.page = page;
+        }
+    }
+
+    //write()在持有它时读写磁盘，用显式锁而不是monitor
+    private final ReentrantLock latch = new ReentrantLock();
+    private long lastCommit = 0;
+    //tid -> 快照时间，查询不需要加锁
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    //快照时间 -> 该时间开始的运行中快照个数
+    private final TreeMap<Long, Integer> activeSnapshots = new TreeMap<>();
+    //pid -> 旧版本，从旧到新
+    private final Map<PageId, List<Version>> chains = new HashMap<>();
+    //tid -> 该事务覆盖掉的、还没有标记提交号的版本
+    private final Map<TransactionId, List<Version>> pending = new HashMap<>();
+    //提交号 -> 在这次提交被覆盖的版本，prune只看比最老快照还旧的提交号
+    private final TreeMap<Long, List<Version>> superseded = new TreeMap<>();
+    private final LinkedHashMap<PageId, Page> committed = new LinkedHashMap<>(16, 0.75f, true);
+    private final int committedCapacity;
+    private int numVersions = 0;
+
+    /**
+     * @param committedCapacity number of latest committed page versions kept
+     *     in memory for snapshot readers
+     */
+    public PageVersionStore(int committedCapacity) {
+        this.committedCapacity = committedCapacity;
+    }
+
+    /** Starts a snapshot for tid as of the last commit. */
+    public void beginSnapshot(TransactionId tid) {
+        latch.lock();
+        try {
+            if (snapshots.containsKey(tid)) return;
+            snapshots.put(tid, lastCommit);
+            activeSnapshots.merge(lastCommit, 1, Integer::sum);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return true if tid is a running snapshot transaction */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /** Ends the snapshot of tid and drops the versions nobody needs any more. */
+    public void endSnapshot(TransactionId tid) {
+        latch.lock();
+        try {
+            Long ts = snapshots.remove(tid);
+            if (ts == null) return;
+            activeSnapshots.computeIfPresent(ts, (k, n) -> n == 1 ? null : n - 1);
+            prune();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Returns the version of a page that the snapshot of tid sees.
+     *
+     * @throws DbException if tid is not a snapshot transaction or the page
+     *     does not exist
+     */
+    public Page read(TransactionId tid, PageId pid) throws DbException {
+        latch.lock();
+        try {
+            Long ts = snapshots.get(tid);
+            if (ts == null) throw new DbException("not a snapshot transaction");
+            List<Version> chain = chains.get(pid);
+            if (chain != null) {
+                for (Version v : chain) {
+                    if (v.supersededAt > ts) return v.page;
+                }
+            }
+            Page page = committed.get(pid);
+            if (page == null) {
+                page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                if (page == null) throw new DbException("page " + pid.getPageNumber() + " does not exist");
+                committed.put(pid, page);
+                Iterator<Page> it = committed.values().iterator();
+                while (committed.size() > committedCapacity && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            return page;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Writes a page to its file, saving the version it overwrites first.
+     *
+     * @param page the page to write
+     * @param writer the transaction whose changes are written, or null if
+     *     the page only holds committed changes
+     */
+    public void write(Page page, TransactionId writer) throws IOException {
+        latch.lock();
+        try {
+            PageId pid = page.getId();
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            Page old = file.readPage(pid);
+            if (old != null) {
+                Version v = new Version(old);
+                chains.computeIfAbsent(pid, k -> new ArrayList<>()).add(v);
+                numVersions++;
+                if (writer == null) supersede(Collections.singletonList(v), ++lastCommit);
+                else pending.computeIfAbsent(writer, k -> new ArrayList<>()).add(v);
+            }
+            file.writePage(page);
+            committed.remove(pid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Called when a transaction ends: the versions it overwrote become
+     * invisible to snapshots that begin from now on.
+     */
+    public void publish(TransactionId tid) {
+        latch.lock();
+        try {
+            List<Version> versions = pending.remove(tid);
+            if (versions == null) return;
+            supersede(versions, ++lastCommit);
+            prune();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the number of old page versions currently kept */
+    public int getNumVersions() {
+        latch.lock();
+        try {
+            return numVersions;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** @return the number of running snapshot transactions */
+    public int getNumSnapshots() {
+        return snapshots.size();
+    }
+
+    private void supersede(List<Version> versions, long commit) {
+        for (Version v : versions) v.supersededAt = commit;
+        superseded.put(commit, versions);
+    }
+
+    //丢掉所有运行中的快照都看不到的版本
+    private void prune() {
+        long oldest = activeSnapshots.isEmpty() ? Long.MAX_VALUE : activeSnapshots.firstKey();
+        while (!superseded.isEmpty() && superseded.firstKey() <= oldest) {
+            for (Version v : superseded.pollFirstEntry().getValue()) {
+                List<Version> chain = chains.get(v.page.getId());
+                chain.remove(v);
+                numVersions--;
+                if (chain.isEmpty()) chains.remove(v.page.getId());
+            }
+        }
+    }
+}
@@ -453,7 +453,7 @@ public class Parser {
             if (curtrans != null)
                 throw new simpledb.ParsingException(
                         "Can't start new transactions until current transaction has been committed or rolledback.");
-            curtrans = new Transaction();
+            curtrans = new Transaction(replica != null);
             curtrans.start();
             inUserTrans = true;
             System.out.println("Started a new transaction tid = "
@@ -510,8 +510,13 @@ public class Parser {
             if (s instanceof ZTransactStmt)
                 handleTransactStatement((ZTransactStmt) s);
             else {
+                if (replica != null && (s instanceof ZInsert || s instanceof ZDelete))
+                    throw new simpledb.ParsingException("this database is a read-only replica");
+                if (replica != null && replica.getFailure() != null)
+                    System.out.println("Warning: the replica stopped following the primary, results may be stale: "
+                            + replica.getFailure().getMessage());
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
+                    curtrans = new Transaction(replica != null);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -595,19 +600,29 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile] [-replica primaryDir]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        if (replica != null) {
+            try {
+                replica.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         System.out.println("Bye");
     }
 
     protected boolean interactive = true;
 
+    // -replica模式下跟随主库的日志，只接受查询
+    protected LogReplica replica = null;
+    static final long REPLICA_POLL_MILLIS = 100;
+
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
 
         String queryFile = null;
 
@@ -625,12 +640,25 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-replica")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected primary directory after -replica\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    //先定下从日志的哪里开始重放，再复制主库的表文件
+                    replica = new LogReplica(new File(argv[i]));
+                    replica.copyTables();
+                    replica.catchUp();
+                    replica.start(REPLICA_POLL_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS);
+                    System.out.println("Following the log of " + argv[i] + " as a read-only replica.");
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
                 }
             }
         }
+        TableStats.computeStatistics();
         if (!interactive) {
             try {
                 // curtrans = new Transaction();
@@ -57,6 +57,20 @@ public class SeqScan implements OpIterator {
         return tableAlias;
     }
 
+    /**
+     * @return the id of the table the operator scans
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the transaction the table is scanned in
+     */
+    public TransactionId getTransactionId() {
+        return transactionId;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -81,6 +95,12 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        //大表的全表扫描直接加一个表级S锁，而不是每个页面一个锁
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if(file instanceof HeapFile
+                && ((HeapFile) file).numPages() > TransactionHelp.getTransactionHelp().getEscalationThreshold()){
+            Database.getBufferPool().lockTable(transactionId, tableId, Permissions.READ_ONLY);
+        }
         dbFileIterator.open();
     }
 
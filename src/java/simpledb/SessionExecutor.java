@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SessionExecutor runs queries and SQL statements of many client sessions
+ * concurrently, each on its own thread.
+ * <p>
+ * On a JVM that has virtual threads, every task runs on a new virtual
+ * thread, so thousands of sessions blocked on locks or disk I/O share a few
+ * carrier threads; the BufferPool, LogFile and lock manager use explicit
+ * locks instead of monitors so that blocking in them does not pin a
+ * carrier.  On older JVMs the executor falls back to a cached pool of
+ * platform threads.
+ * <p>
+ * Statements of one {@link Session} run one after another, in the order they
+ * were submitted, since a Parser keeps the state of its current
+ * transaction; statements of different sessions run in parallel.
+ *
+ * @Threadsafe
+ */
+public class SessionExecutor implements AutoCloseable {
+
+    /**
+     * A client session: a Parser whose statements run in submission order.
+     */
+    public class Session {
+        private final Parser parser = new Parser();
+        private final ReentrantLock tailLock = new ReentrantLock();
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+        /**
+         * Runs a SQL statement after the previously submitted ones.  Errors
+         * are reported the same way as by the interactive parser.
+         *
+         * @return a future that completes when the statement has run
+         */
+        public CompletableFuture<Void> submit(String statement) {
+            tailLock.lock();
+            try {
+                //前一条语句失败时也要继续执行后面的语句
+                tail = tail.handle((v, e) -> null)
+                        .thenRunAsync(() -> parser.processNextStatement(statement), executor);
+                return tail;
+            } finally {
+                tailLock.unlock();
+            }
+        }
+
+        /** @return the parser of this session */
+        public Parser getParser() {
+            return parser;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+
+    /**
+     * Creates an executor that runs each task on a virtual thread if the JVM
+     * supports them, or on a pooled platform thread otherwise.
+     */
+    public SessionExecutor() {
+        ExecutorService virtual = newVirtualThreadExecutor();
+        virtualThreads = virtual != null;
+        executor = virtual != null ? virtual : Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "simpledb-session");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    //Executors.newVirtualThreadPerTaskExecutor()只在JDK 21以上存在，用反射查找
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /** @return true if tasks run on virtual threads */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /** Opens a new session with its own parser. */
+    public Session openSession() {
+        return new Session();
+    }
+
+    /**
+     * Runs a query to completion, printing its result as Query.execute does.
+     *
+     * @return a future that completes when the query has run
+     */
+    public Future<Void> submit(Query query) {
+        return executor.submit(() -> {
+            query.execute();
+            return null;
+        });
+    }
+
+    /** Runs an arbitrary task, e.g. a whole transaction. */
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Stops accepting tasks and waits for the running ones to finish.  If
+     * the calling thread is interrupted while waiting, close returns with
+     * the interrupt status of the thread set.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep waiting
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two children by merging them in order
+ * of their join fields.
+ * <p>
+ * A child that is already ordered on its join field, such as a BTreeScan
+ * on the key of its B+ tree or an ascending OrderBy, is read as it is;
+ * the other children are sorted with an external sort within the memory
+ * budget.  Equality joins merge the two sorted inputs in a single pass,
+ * keeping the run of inner tuples that share the current key so that a
+ * run of outer tuples with the same key is joined with it; a run that
+ * does not fit in memory is kept in a spill file.  For the range
+ * operators, the tuples of one side matching a tuple of the other side
+ * are a prefix of the first side in sorted order, and that prefix only
+ * grows as the other side is read in order; the matched prefix is kept,
+ * spilling past the memory budget, and each side is read only once.
+ * <p>
+ * Supported operators are EQUALS, LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN
+ * and GREATER_THAN_OR_EQ.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default memory for sorting and for a run of equal keys, in bytes */
+    public static final int DEFAULT_MEMORY_BYTES = 1 << 22;
+
+    private OpIterator child1, child2;
+    private final JoinPredicate pred;
+    private final int memoryBytes;
+    private final TupleDesc comboTD;
+
+    transient private Sorted outer, inner;
+
+    // 等值连接：当前外表元组，内表中与它键相同的一组元组，和内表的下一个元组
+    transient private Tuple left;
+    transient private Group group;
+    transient private Tuple right;
+    transient private boolean innerStarted;
+
+    // 范围连接：当前驱动元组，已经匹配的前缀，和前缀一侧读到但还没匹配的元组
+    transient private Tuple driving;
+    transient private Group matched;
+    transient private Tuple pending;
+    transient private boolean extending;
+
+    // for tests
+    int sortedInputs = 0;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Constructor for a join with the given memory budget.
+     *
+     * @param memoryBytes
+     *            Memory for sorting a child and for a run of inner tuples
+     *            with equal keys, in bytes
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryBytes) {
+        if (memoryBytes <= 0) throw new IllegalArgumentException("memory budget must be positive");
+        if (!isSupported(p.getOperator()))
+            throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryBytes = memoryBytes;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** @return true if a sort-merge join can evaluate the operator */
+    public static boolean isSupported(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the child returns its tuples in ascending order of
+     *         the field, so that it does not need to be sorted
+     */
+    static boolean isSortedOn(OpIterator child, int field) {
+        if (child instanceof BTreeScan) return ((BTreeScan) child).getKeyField() == field;
+        if (child instanceof OrderBy) {
+            OrderBy orderBy = (OrderBy) child;
+            return orderBy.isASC() && orderBy.getOrderByField() == field;
+        }
+        //过滤不改变顺序，字段也不变
+        if (child instanceof Filter) return isSortedOn(((Filter) child).getChildren()[0], field);
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /** A child in ascending order of its join field */
+    private interface Sorted {
+        /** @return the next tuple, or null after the last one */
+        Tuple next() throws DbException, TransactionAbortedException;
+        /** Starts over from the first tuple. */
+        void rewind() throws DbException, TransactionAbortedException;
+        void close();
+    }
+
+    private Sorted sorted(final OpIterator child, int field) throws DbException, TransactionAbortedException {
+        if (isSortedOn(child, field)) {
+            return new Sorted() {
+                public Tuple next() throws DbException, TransactionAbortedException {
+                    return child.hasNext() ? child.next() : null;
+                }
+
+                public void rewind() throws DbException, TransactionAbortedException {
+                    child.rewind();
+                }
+
+                public void close() {
+                }
+            };
+        }
+        final ExternalSort sort = new ExternalSort(child, field, memoryBytes);
+        sort.sort();
+        sortedInputs++;
+        return new Sorted() {
+            public Tuple next() throws DbException {
+                return sort.next();
+            }
+
+            public void rewind() throws DbException {
+                sort.rewind();
+            }
+
+            public void close() {
+                sort.close();
+            }
+        };
+    }
+
+    /**
+     * Tuples kept to be joined again: the inner tuples sharing the current
+     * key, or the matched prefix of a range join.  They are held in memory
+     * up to the memory budget and then written out in spill files of that
+     * size, so tuples can still be added after the group has been read.
+     */
+    private class Group {
+        final TupleDesc td;
+        final int capacity;
+        final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        final ArrayList<SpillFile> files = new ArrayList<SpillFile>();
+        SpillFile.Reader reader = null;
+        int file = 0;
+        int index = 0;
+        Field key = null; // 内表一组共同的键
+
+        Group(TupleDesc td) {
+            this.td = td;
+            this.capacity = Math.max(1, memoryBytes / td.getSize());
+        }
+
+        void clear() {
+            tuples.clear();
+            if (reader != null) reader.close();
+            for (SpillFile f : files) f.delete();
+            files.clear();
+            reader = null;
+            file = 0;
+            index = 0;
+            key = null;
+        }
+
+        void add(Tuple t) throws DbException {
+            tuples.add(t);
+            if (tuples.size() < capacity) return;
+            SpillFile f = new SpillFile(td);
+            for (Tuple u : tuples) f.add(u);
+            f.finish();
+            files.add(f);
+            tuples.clear();
+        }
+
+        void rewind() {
+            if (reader != null) reader.close();
+            reader = null;
+            file = 0;
+            index = 0;
+        }
+
+        // 先读溢出文件，再读内存里的元组
+        Tuple next() throws DbException {
+            while (file < files.size()) {
+                if (reader == null) reader = files.get(file).reader();
+                Tuple t = reader.next();
+                if (t != null) return t;
+                reader = null;
+                file++;
+            }
+            return index < tuples.size() ? tuples.get(index++) : null;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        reset();
+        outer = sorted(child1, pred.getField1());
+        inner = sorted(child2, pred.getField2());
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        reset();
+        child2.close();
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // 排好序的输入直接从头读，不用重新排序
+        outer.rewind();
+        inner.rewind();
+        left = null;
+        right = null;
+        innerStarted = false;
+        group.clear();
+        driving = null;
+        matched.clear();
+        pending = null;
+        extending = false;
+    }
+
+    private void reset() {
+        if (outer != null) outer.close();
+        if (inner != null) inner.close();
+        if (group != null) group.clear();
+        if (matched != null) matched.clear();
+        outer = null;
+        inner = null;
+        group = new Group(child2.getTupleDesc());
+        left = null;
+        right = null;
+        innerStarted = false;
+        driving = null;
+        matched = new Group(pred.getOperator() == Predicate.Op.GREATER_THAN
+                || pred.getOperator() == Predicate.Op.GREATER_THAN_OR_EQ
+                ? child2.getTupleDesc() : child1.getTupleDesc());
+        pending = null;
+        extending = false;
+        sortedInputs = 0;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(comboTD);
+        int td1n = t1.getTupleDesc().numFields();
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (pred.getOperator() == Predicate.Op.EQUALS) return fetchEquals();
+        return fetchRange();
+    }
+
+    private Tuple fetchEquals() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (left != null) {
+                Tuple t2 = group.next();
+                if (t2 != null) return merge(left, t2);
+            }
+            left = outer.next();
+            if (left == null) return null;
+            Field key = left.getField(pred.getField1());
+            //外表的下一个元组键相同时，重用内表的这一组
+            if (group.key != null && key.compare(Predicate.Op.EQUALS, group.key)) {
+                group.rewind();
+                continue;
+            }
+            group.clear();
+            if (!innerStarted) {
+                right = inner.next();
+                innerStarted = true;
+            }
+            while (right != null && key.compare(Predicate.Op.GREATER_THAN, right.getField(pred.getField2())))
+                right = inner.next();
+            if (right == null) {
+                // 内表读完了，外表后面的元组都不会匹配
+                left = null;
+                return null;
+            }
+            group.key = key;
+            while (right != null && key.compare(Predicate.Op.EQUALS, right.getField(pred.getField2()))) {
+                group.add(right);
+                right = inner.next();
+            }
+            group.rewind();
+        }
+    }
+
+    /*
+     * For outer > inner and outer >= inner the inner tuples matching an
+     * outer tuple are a prefix of the sorted inner child; for outer < inner
+     * and outer <= inner, the outer tuples matching an inner tuple are a
+     * prefix of the sorted outer child.  The next driving tuple matches the
+     * same prefix and possibly more tuples after it, so the matched prefix
+     * is replayed from the group and then extended from the prefix side.
+     */
+    private Tuple fetchRange() throws TransactionAbortedException, DbException {
+        Predicate.Op op = pred.getOperator();
+        boolean outerDrives = op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+        Predicate.Op prefixOp = op == Predicate.Op.GREATER_THAN || op == Predicate.Op.LESS_THAN
+                ? Predicate.Op.LESS_THAN : Predicate.Op.LESS_THAN_OR_EQ;
+        Sorted driver = outerDrives ? outer : inner;
+        Sorted prefix = outerDrives ? inner : outer;
+        int driverField = outerDrives ? pred.getField1() : pred.getField2();
+        int prefixField = outerDrives ? pred.getField2() : pred.getField1();
+        while (true) {
+            if (driving != null) {
+                Tuple t = extending ? null : matched.next();
+                if (t == null) {
+                    extending = true;
+                    if (pending == null) pending = prefix.next();
+                    if (pending != null && pending.getField(prefixField).compare(prefixOp, driving.getField(driverField))) {
+                        t = pending;
+                        pending = null;
+                        matched.add(t);
+                    }
+                }
+                if (t != null) return outerDrives ? merge(driving, t) : merge(t, driving);
+            }
+            driving = driver.next();
+            if (driving == null) return null;
+            matched.rewind();
+            extending = false;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * SpillFile is a temporary file of tuples, used by operators whose input
+ * does not fit in their memory budget.  Tuples are appended with their
+ * fields serialized as on a page, then read back in the same order, as
+ * many times as needed.  The file is deleted when the spill file is.
+ */
+class SpillFile {
+
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("simpledb-spill", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("cannot create spill file: " + e.getMessage());
+        }
+    }
+
+    /** Appends a tuple; tuples cannot be added once the file has been read. */
+    void add(Tuple t) throws DbException {
+        if (out == null) throw new IllegalStateException("spill file already read");
+        try {
+            for (int i = 0; i < td.numFields(); i++) t.getField(i).serialize(out);
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        }
+        size++;
+    }
+
+    /** @return the number of tuples in the file */
+    int size() {
+        return size;
+    }
+
+    /** Ends writing the file; it can only be read after this. */
+    void finish() throws DbException {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /** @return a reader over the tuples of the file, from the first one */
+    Reader reader() throws DbException {
+        finish();
+        try {
+            return new Reader(new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)));
+        } catch (IOException e) {
+            throw new DbException("cannot read spill file: " + e.getMessage());
+        }
+    }
+
+    /** Deletes the file. */
+    void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // deleted anyway
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    /** Reads the tuples of a spill file in order */
+    class Reader {
+        private final DataInputStream in;
+        private final byte[] record = new byte[td.getSize()];
+        private int read = 0;
+
+        private Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        /** @return the next tuple, or null after the last one */
+        Tuple next() throws DbException {
+            if (read == size) {
+                close();
+                return null;
+            }
+            try {
+                //整条记录读进数组再解析，Type.parse不会遇到读不满的情况
+                in.readFully(record);
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++) t.setField(i, td.getFieldType(i).parse(fields));
+                read++;
+                return t;
+            } catch (IOException | ParseException e) {
+                throw new DbException("cannot read spill file: " + e.getMessage());
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -5,19 +5,47 @@ import java.io.*;
 /**
  * Transaction encapsulates information about the state of
  * a transaction and manages transaction commit / abort.
+ * <p>
+ * A transaction declared read-only writes nothing to the log, neither at
+ * start nor at commit, and reads under a snapshot without any lock when the
+ * BufferPool has snapshot isolation enabled, or under shared locks
+ * otherwise.  Any attempt to write makes it fail with a DbException.
+ * <p>
+ * A transaction made optimistic with {@link BufferPool#beginOptimistic}
+ * after it starts commits with {@link #commitOptimistic}, which validates
+ * it: its updates and its commit record are logged by
+ * {@link BufferPool#commitOptimistic} once validation succeeds, and it is
+ * aborted otherwise.  commit refuses optimistic transactions, so that a
+ * failed validation is always reported as a TransactionAbortedException.
  */
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly true if the transaction will only read
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            //只读事务不写日志
+            BufferPool bufferPool = Database.getBufferPool();
+            if (bufferPool.isSnapshotIsolation()) bufferPool.beginSnapshot(tid);
+            else bufferPool.beginReadOnly(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -25,26 +53,66 @@ public class Transaction {
         }
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     public TransactionId getId() {
         return tid;
     }
 
-    /** Finish the transaction */
+    /**
+     * Finish the transaction
+     *
+     * @throws IllegalStateException if the transaction is optimistic; use
+     *     {@link #commitOptimistic}
+     */
     public void commit() throws IOException {
         transactionComplete(false);
     }
 
+    /**
+     * Validates and commits an optimistic transaction.
+     *
+     * @throws TransactionAbortedException if validation failed; the
+     *     transaction has been aborted when this is thrown
+     * @throws IllegalStateException if the transaction is not optimistic
+     */
+    public void commitOptimistic() throws IOException, TransactionAbortedException {
+        if (!started) return;
+        if (!Database.getBufferPool().isOptimistic(tid))
+            throw new IllegalStateException("not an optimistic transaction");
+        started = false;
+        try {
+            //验证通过后缓冲池写更新记录和提交记录
+            Database.getBufferPool().commitOptimistic(tid);
+        } catch (TransactionAbortedException e) {
+            //没有写提交记录，用中止记录结束日志里的这个事务
+            Database.getLogFile().logAbort(tid);
+            throw e;
+        }
+    }
+
     /** Finish the transaction */
     public void abort() throws IOException {
         transactionComplete(true);
     }
 
-    /** Handle the details of transaction commit / abort */
+    /**
+     * Handle the details of transaction commit / abort
+     *
+     * @throws IllegalStateException if asked to commit an optimistic
+     *     transaction; use {@link #commitOptimistic}
+     */
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
+            if (!abort && Database.getBufferPool().isOptimistic(tid))
+                throw new IllegalStateException("optimistic transactions commit with commitOptimistic");
             //write commit / abort records
-            if (abort) {
+            if (readOnly) {
+                //nothing to log or flush
+            } else if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
                 //write all the dirty pages for this transaction out
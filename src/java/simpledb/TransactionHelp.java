@@ -3,117 +3,722 @@ package simpledb;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-//这个类大部分抄的https://github.com/jasonleaster/simple-db里的TransactionManager，建议两个结合起来看，
-// 另外，注意TransactionId里的修改
+//这个类最初参考了https://github.com/jasonleaster/simple-db里的TransactionManager，
+// 现在改成了基于等待队列的锁管理器：每个资源一个锁项，阻塞的事务在自己的Condition上等待，
+// 释放锁时按FIFO顺序唤醒，不再忙等。死锁通过等待图（waits-for graph）检测，不再依靠超时
 
+/**
+ * TransactionHelp is the lock manager used by the BufferPool.
+ * <p>
+ * Locks are hierarchical: a table can be locked in one of the modes IS, IX,
+ * S, SIX and X, and its pages in S, IX, SIX or X mode.  Before a page is
+ * locked the transaction takes the matching intention lock (IS or IX) on its
+ * table.  A table lock in S, SIX or X mode covers reads of all of its pages,
+ * and X mode also covers writes, so a transaction holding such a lock does
+ * not take any page lock for the pages it covers.  Scans of large tables
+ * take one table S lock up front, and a transaction that accumulates more
+ * than {@link #getEscalationThreshold()} page locks in a table escalates to
+ * a table lock when that can be granted without waiting.
+ * <p>
+ * Tuples can be locked too, for transactions that modify single tuples
+ * without locking the whole page (see {@link BufferPool#setTupleLocking}).
+ * Such a transaction takes an IX lock on the table and on the page, and an
+ * X lock on each tuple (keyed by its RecordId) it inserts or deletes.  IX
+ * page locks are compatible with each other, so any number of transactions
+ * can modify different tuples of one page at the same time, while readers,
+ * who take S page locks, wait until they are done.
+ * <p>
+ * Every locked resource has a lock entry holding the set of granted locks and
+ * a FIFO queue of waiting requests.  A request that cannot be granted parks
+ * on its own Condition and is woken up by the transaction that releases the
+ * conflicting lock, so waiting transactions do not use any CPU.  Requests are
+ * granted strictly in queue order, except that an upgrade by a current holder
+ * is queued ahead of new requests, so that an upgrade is never starved by a
+ * stream of readers.
+ * <p>
+ * The lock table is hash-striped by resource: each stripe has its own latch
+ * and its own map of lock entries, so transactions locking different pages
+ * rarely touch the same latch.  The locks held by each transaction are also
+ * kept in a concurrent map, which lets holdsLock, re-acquiring a lock that is
+ * already held and releasing a lock that is not held run without any latch.
+ * <p>
+ * Deadlocks are found with a waits-for graph derived from the lock entries:
+ * a waiting request waits for every incompatible holder of its resource and
+ * for every request queued ahead of it.  The graph is searched for a cycle
+ * each time a request blocks, and again periodically while it stays blocked
+ * since grants can redirect existing waits.  The search takes every stripe
+ * latch in order to see a consistent graph; it only runs on the blocking
+ * path.  The youngest transaction of a cycle is aborted; transactions that
+ * merely wait a long time are never aborted.
+ */
 public class TransactionHelp {
     private static final TransactionHelp transactionHelp = new TransactionHelp();
     public static TransactionHelp getTransactionHelp() {
         return transactionHelp;
     }
-    private static final long Transaction_Limit_Time = 1000;
-    private final Map<PageId, TransactionId> writeLock = new ConcurrentHashMap<>(); //写锁是排它（独占）锁
-    private final Map<PageId, Set<TransactionId>> readLock = new ConcurrentHashMap<>(); //读锁是共享锁
-    public void reset() {
-        synchronized (TransactionHelp.class){
-            transactionHelp.writeLock.clear();
-            transactionHelp.readLock.clear();
+    /** How often a blocked request re-runs deadlock detection, in ms */
+    private static final long DEADLOCK_CHECK_INTERVAL = 100;
+    /** Number of lock table stripes, a power of two */
+    private static final int NUM_STRIPES = 64;
+    /** Default number of page locks in one table after which a transaction escalates */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /** Lock modes, from weakest to strongest */
+    public enum LockMode {
+        IS, IX, S, SIX, X;
+
+        //兼容矩阵，行列顺序与枚举顺序相同
+        private static final boolean[][] COMPATIBLE = {
+                /*        IS     IX     S      SIX    X     */
+                /* IS  */{true,  true,  true,  true,  false},
+                /* IX  */{true,  true,  false, false, false},
+                /* S   */{true,  false, true,  false, false},
+                /* SIX */{true,  false, false, false, false},
+                /* X   */{false, false, false, false, false},
+        };
 
+        /** @return true if two transactions may hold this and other at the same time */
+        public boolean compatible(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode at least as strong as both this and other */
+        public LockMode combine(LockMode other) {
+            if (other == null || this == other) return this;
+            if ((this == IX && other == S) || (this == S && other == IX)) return SIX;
+            return ordinal() > other.ordinal() ? this : other;
+        }
+
+        /** @return true if holding this mode grants everything other grants */
+        public boolean covers(LockMode other) {
+            return combine(other) == this;
         }
     }
-    public void getLock(TransactionId tid ,PageId pid ,Permissions perm) throws TransactionAbortedException{
-        if (perm == Permissions.READ_ONLY){//尝试获取读锁
-            while (true){
-                if (isTimeOut(tid)){
-                    dealWithPotentialDeadlocks(tid);
-                }
-                synchronized (writeLock){
-                    if (!writeLock.containsKey(pid) || writeLock.get(pid) == null || writeLock.get(pid).equals(tid)){
-                        //该页面没有写锁或者写锁是tid的
-                        readLock.computeIfAbsent(pid, k -> new HashSet<>()).add(tid);
-                        //判断map.get(pid)是否存在，若不存在则新建一个键值对，然后往set中添加tid
-                        return;
+
+    /** The lock resource standing for a whole table */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(tableId) * 31 + 7;
+        }
+
+        @Override
+        public String toString() {
+            return "Table#" + tableId;
+        }
+    }
+
+    /** A lock request, queued while it waits to be granted */
+    private static class LockRequest {
+        final TransactionId tid;
+        final Object key;
+        final LockMode mode;
+        final Condition granted_cond;
+        boolean granted = false; //protected by the stripe latch
+        boolean aborted = false; //protected by the stripe latch
+
+        LockRequest(TransactionId tid, Object key, LockMode mode, Condition cond) {
+            this.tid = tid;
+            this.key = key;
+            this.mode = mode;
+            this.granted_cond = cond;
+        }
+    }
+
+    /** Locks granted on one resource, and the requests waiting for it */
+    private static class LockEntry {
+        final Map<TransactionId, LockMode> holders = new HashMap<>();
+        final LinkedList<LockRequest> waiters = new LinkedList<>();
+
+        boolean isEmpty() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+
+        //除tid自己持有的锁外，是否与mode兼容
+        boolean compatible(TransactionId tid, LockMode mode) {
+            for (Map.Entry<TransactionId, LockMode> holder : holders.entrySet()) {
+                if (holder.getKey().equals(tid)) continue;
+                if (!mode.compatible(holder.getValue())) return false;
+            }
+            return true;
+        }
+    }
+
+    /** One partition of the lock table with its own latch */
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<Object, LockEntry> lockTable = new HashMap<>(); //protected by latch
+    }
+
+    /** The locks held by one transaction */
+    private static class HeldLocks {
+        //资源 -> 锁模式，写入时持有对应资源所在分段的latch，读取不需要加锁
+        final Map<Object, LockMode> modes = new ConcurrentHashMap<>();
+        //tableId -> 该表上持有的页面锁个数
+        final Map<Integer, AtomicInteger> pageCounts = new ConcurrentHashMap<>();
+        //tableId -> 页面锁超过多少个时再尝试升级
+        final Map<Integer, Integer> nextEscalation = new ConcurrentHashMap<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+    private final Map<TransactionId, HeldLocks> held = new ConcurrentHashMap<>();
+    //等待图的出边来源，修改时持有请求所在分段的latch
+    private final Map<TransactionId, Set<LockRequest>> waiting = new ConcurrentHashMap<>();
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    //统计信息
+    private final AtomicLong deadlockAborts = new AtomicLong();
+    private final AtomicLong detectionRuns = new AtomicLong();
+    private final AtomicLong detectionNanos = new AtomicLong();
+    private final AtomicLong maxDetectionNanos = new AtomicLong();
+    private final AtomicLong escalations = new AtomicLong();
+
+    private TransactionHelp() {
+        for (int i = 0; i < NUM_STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+    private Stripe stripeFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (NUM_STRIPES - 1)];
+    }
+
+    //按分段顺序获取所有latch，避免死锁
+    private void lockAll() {
+        for (Stripe stripe : stripes) stripe.latch.lock();
+    }
+
+    private void unlockAll() {
+        for (int i = NUM_STRIPES - 1; i >= 0; i--) stripes[i].latch.unlock();
+    }
+
+    public void reset() {
+        lockAll();
+        try {
+            //唤醒所有还在等待的请求，让它们abort
+            for (Stripe stripe : stripes) {
+                for (LockEntry entry : stripe.lockTable.values()) {
+                    for (LockRequest req : entry.waiters) {
+                        req.aborted = true;
+                        req.granted_cond.signal();
                     }
                 }
-                Thread.yield(); //让出cpu，尝试参与下一次锁的竞争
+                stripe.lockTable.clear();
             }
-        }else{//尝试获取写锁
-            while (true){
-                if (isTimeOut(tid)){
-                    dealWithPotentialDeadlocks(tid);
+            held.clear();
+            waiting.clear();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Sets the number of page locks a transaction may hold in one table
+     * before it tries to escalate to a table lock.  Scans of tables with more
+     * pages than this take a table lock up front.
+     */
+    public void setEscalationThreshold(int threshold) {
+        if (threshold <= 0) throw new IllegalArgumentException("threshold must be positive");
+        this.escalationThreshold = threshold;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Locks a page for the specified transaction, blocking until the lock is
+     * granted.  Takes the matching intention lock on the page's table first,
+     * and does not lock the page at all if a table lock already covers it.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *         break a deadlock; it has been aborted when this is thrown
+     */
+    public void getLock(TransactionId tid ,PageId pid ,Permissions perm) throws TransactionAbortedException{
+        LockMode mode = perm == Permissions.READ_WRITE ? LockMode.X : LockMode.S;
+        TableKey table = new TableKey(pid.getTableId());
+        //快速路径：表锁或页面锁已经足够
+        LockMode tableMode = heldMode(tid, table);
+        if (tableMode != null && tableMode.covers(mode)) return;
+        LockMode pageMode = heldMode(tid, pid);
+        if (pageMode != null && pageMode.covers(mode)) return;
+
+        acquire(tid, table, mode == LockMode.X ? LockMode.IX : LockMode.IS);
+        acquire(tid, pid, mode);
+        maybeEscalate(tid, pid.getTableId());
+    }
+
+    /**
+     * Locks a whole table for the specified transaction in S mode for reads
+     * or X mode for writes, blocking until the lock is granted.  Page locks
+     * the transaction holds in the table that become redundant are released.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *         break a deadlock; it has been aborted when this is thrown
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm) throws TransactionAbortedException {
+        LockMode mode = perm == Permissions.READ_WRITE ? LockMode.X : LockMode.S;
+        TableKey table = new TableKey(tableId);
+        LockMode tableMode = heldMode(tid, table);
+        if (tableMode != null && tableMode.covers(mode)) return;
+        acquire(tid, table, mode);
+        releaseCoveredPages(tid, tableId);
+    }
+
+    /**
+     * Takes IX locks on a page and its table, so that the transaction may
+     * lock and modify single tuples on the page.  Blocks until the locks are
+     * granted.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *         break a deadlock; it has been aborted when this is thrown
+     */
+    public void lockPageForTupleUpdate(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        TableKey table = new TableKey(pid.getTableId());
+        LockMode tableMode = heldMode(tid, table);
+        if (tableMode != null && tableMode.covers(LockMode.X)) return;
+        LockMode pageMode = heldMode(tid, pid);
+        if (pageMode != null && pageMode.covers(LockMode.IX)) return;
+
+        acquire(tid, table, LockMode.IX);
+        acquire(tid, pid, LockMode.IX);
+        maybeEscalate(tid, pid.getTableId());
+    }
+
+    /**
+     * Locks a tuple exclusively, taking IX locks on its page and table
+     * first.  Blocks until the lock is granted.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *         break a deadlock; it has been aborted when this is thrown
+     */
+    public void lockTuple(TransactionId tid, RecordId rid) throws TransactionAbortedException {
+        if (coversTuple(tid, rid)) return;
+        lockPageForTupleUpdate(tid, rid.getPageId());
+        if (coversTuple(tid, rid)) return;
+        acquire(tid, rid, LockMode.X);
+    }
+
+    /**
+     * Locks a tuple exclusively if that can be done without waiting.  The
+     * transaction must already hold an IX lock on the tuple's page.
+     *
+     * @return true if the transaction holds the lock when this returns
+     */
+    public boolean tryLockTuple(TransactionId tid, RecordId rid) {
+        if (coversTuple(tid, rid)) return true;
+        Stripe stripe = stripeFor(rid);
+        stripe.latch.lock();
+        try {
+            LockEntry entry = stripe.lockTable.get(rid);
+            if (entry == null) {
+                entry = new LockEntry();
+                stripe.lockTable.put(rid, entry);
+            } else if (!entry.waiters.isEmpty() || !entry.compatible(tid, LockMode.X)) {
+                return false;
+            }
+            grant(entry, tid, rid, LockMode.X);
+            return true;
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    //表锁、页面锁或者元组锁已经允许tid修改该元组
+    private boolean coversTuple(TransactionId tid, RecordId rid) {
+        PageId pid = rid.getPageId();
+        LockMode tableMode = heldMode(tid, new TableKey(pid.getTableId()));
+        if (tableMode == LockMode.X) return true;
+        if (heldMode(tid, pid) == LockMode.X) return true;
+        return heldMode(tid, rid) == LockMode.X;
+    }
+
+    /** @return the mode of the page lock the transaction holds, or null */
+    public LockMode getPageLockMode(TransactionId tid, PageId pid) {
+        return heldMode(tid, pid);
+    }
+
+    //该事务在该页面上是否有锁，包括覆盖该页面的表锁
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        if (heldMode(tid, pid) != null) return true;
+        LockMode tableMode = heldMode(tid, new TableKey(pid.getTableId()));
+        return tableMode != null && tableMode.covers(LockMode.S);
+    }
+
+    /** @return the mode of the table lock the transaction holds, or null */
+    public LockMode getTableLockMode(TransactionId tid, int tableId) {
+        return heldMode(tid, new TableKey(tableId));
+    }
+
+    //释放事务tid在页面pid上的锁，表锁不受影响
+    public void releasePage(TransactionId tid, PageId pid) {
+        if (pid == null || tid == null || heldMode(tid, pid) == null) {
+            return;
+        }
+        release(tid, pid);
+    }
+
+    /**
+     * Releases every lock held by the specified transaction and drops any
+     * request it still has queued.
+     */
+    public void releaseAllLocks(TransactionId tid) {
+        if (tid == null) return;
+        HeldLocks locks = held.get(tid);
+        if (locks != null) {
+            for (Object key : new ArrayList<>(locks.modes.keySet())) {
+                release(tid, key);
+            }
+        }
+        //被强行终止的线程可能还留有等待中的请求
+        Set<LockRequest> reqs = waiting.get(tid);
+        if (reqs != null) {
+            for (LockRequest req : new ArrayList<>(reqs)) {
+                Stripe stripe = stripeFor(req.key);
+                stripe.latch.lock();
+                try {
+                    LockEntry entry = stripe.lockTable.get(req.key);
+                    if (entry != null) cancel(stripe, entry, req);
+                    removeWaiting(req);
+                } finally {
+                    stripe.latch.unlock();
                 }
-                synchronized (writeLock){
-                    if (writeLock.containsKey(pid) && !writeLock.get(pid).equals(tid)){
-                        //该页面被其他事务的写锁占据
-                    }else {
-                        if (readLock.containsKey(pid) && readLock.get(pid)!=null && !readLock.get(pid).isEmpty()){
-                            //如果该页面有被读锁占据
-                            if(readLock.get(pid).size() == 1 && readLock.get(pid).contains(tid)){
-                                //仅被此事务的读锁占据时才获取写锁
-                                writeLock.put(pid,tid);
-                                return;
-                            }
-                        }
-                        else {
-                            //该页面没有被任何读锁占据，直接获取写锁
-                            writeLock.put(pid,tid);
-                            return;
-                        }
+            }
+        }
+        held.remove(tid);
+    }
+
+    /** @return the pages the specified transaction holds page locks on */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        HeldLocks locks = held.get(tid);
+        if (locks == null) return Collections.emptySet();
+        Set<PageId> pages = new HashSet<>();
+        for (Object key : locks.modes.keySet()) {
+            if (key instanceof PageId) pages.add((PageId) key);
+        }
+        return pages;
+    }
+
+    /** @return the number of transactions aborted to break a deadlock */
+    public long getDeadlockAborts() {
+        return deadlockAborts.get();
+    }
+
+    /** @return the number of times the waits-for graph was searched */
+    public long getDetectionRuns() {
+        return detectionRuns.get();
+    }
+
+    /** @return the total time spent searching the waits-for graph, in ns */
+    public long getDetectionNanos() {
+        return detectionNanos.get();
+    }
+
+    /** @return the longest single search of the waits-for graph, in ns */
+    public long getMaxDetectionNanos() {
+        return maxDetectionNanos.get();
+    }
+
+    /** @return the number of times page locks were escalated to a table lock */
+    public long getEscalations() {
+        return escalations.get();
+    }
+
+    private LockMode heldMode(TransactionId tid, Object key) {
+        HeldLocks locks = held.get(tid);
+        return locks == null ? null : locks.modes.get(key);
+    }
+
+    /**
+     * Grants tid a lock of at least the specified mode on key, blocking until
+     * it can be granted or tid is chosen as a deadlock victim.
+     */
+    private void acquire(TransactionId tid, Object key, LockMode mode) throws TransactionAbortedException {
+        Stripe stripe = stripeFor(key);
+        LockRequest req;
+        stripe.latch.lock();
+        try {
+            LockEntry entry = stripe.lockTable.computeIfAbsent(key, k -> new LockEntry());
+            LockMode current = entry.holders.get(tid);
+            if (current != null && current.covers(mode)) {
+                return;
+            }
+            boolean upgrade = current != null;
+            LockMode wanted = mode.combine(current);
+            //队列为空时才能直接获取锁，否则排在后面，避免插队；升级请求例外
+            if ((upgrade || entry.waiters.isEmpty()) && entry.compatible(tid, wanted)) {
+                grant(entry, tid, key, wanted);
+                return;
+            }
+            req = new LockRequest(tid, key, wanted, stripe.latch.newCondition());
+            if (upgrade) {
+                //升级请求排在所有新请求前面，但在其他升级请求之后
+                int i = 0;
+                while (i < entry.waiters.size() && entry.holders.containsKey(entry.waiters.get(i).tid)) i++;
+                entry.waiters.add(i, req);
+            } else {
+                entry.waiters.addLast(req);
+            }
+            addWaiting(req);
+
+            try {
+                while (!req.granted && !req.aborted) {
+                    //阻塞时检测一次，之后定期再检测，因为授予锁可能改变等待关系。
+                    //检测需要所有分段的latch，先放开自己的latch以保证加锁顺序
+                    stripe.latch.unlock();
+                    TransactionId victim;
+                    try {
+                        victim = detectDeadlock(tid);
+                    } finally {
+                        stripe.latch.lock();
                     }
+                    if (req.granted || req.aborted) break;
+                    if (tid.equals(victim)) {
+                        req.aborted = true;
+                        break;
+                    }
+                    req.granted_cond.await(DEADLOCK_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
                 }
-                Thread.yield();
+            } catch (InterruptedException e) {
+                req.aborted = true;
             }
+            removeWaiting(req);
+            if (req.granted) return;
+            cancel(stripe, entry, req);
+        } finally {
+            stripe.latch.unlock();
         }
+        dealWithPotentialDeadlocks(tid);
     }
 
-    //该事务在该页面上是否有锁
-    public boolean holdsLock(TransactionId tid, PageId pid) {
-        synchronized (writeLock) {
-            //检查是否有排它锁（写锁）
-            if (writeLock.get(pid) != null && writeLock.get(pid).equals(tid)) {
-                return true;
+    /**
+     * Escalates tid's page locks in a table to a table lock once there are
+     * more than the threshold, if the table lock can be granted without
+     * waiting.  Waiting here could deadlock with transactions holding
+     * intention locks, so a failed attempt is simply retried later.
+     */
+    private void maybeEscalate(TransactionId tid, int tableId) {
+        HeldLocks locks = held.get(tid);
+        if (locks == null) return;
+        AtomicInteger count = locks.pageCounts.get(tableId);
+        int limit = locks.nextEscalation.getOrDefault(tableId, escalationThreshold);
+        if (count == null || count.get() <= limit) return;
+
+        boolean exclusive = false;
+        for (Map.Entry<Object, LockMode> lock : locks.modes.entrySet()) {
+            if (lock.getKey() instanceof PageId && ((PageId) lock.getKey()).getTableId() == tableId
+                    && lock.getValue() != LockMode.S) {
+                exclusive = true;
+                break;
+            }
+        }
+        TableKey table = new TableKey(tableId);
+        Stripe stripe = stripeFor(table);
+        boolean granted = false;
+        stripe.latch.lock();
+        try {
+            LockEntry entry = stripe.lockTable.computeIfAbsent(table, k -> new LockEntry());
+            LockMode wanted = (exclusive ? LockMode.X : LockMode.S).combine(entry.holders.get(tid));
+            if (entry.compatible(tid, wanted)) {
+                grant(entry, tid, table, wanted);
+                granted = true;
+            } else if (entry.isEmpty()) {
+                stripe.lockTable.remove(table);
             }
+        } finally {
+            stripe.latch.unlock();
+        }
+        if (granted) {
+            escalations.incrementAndGet();
+            releaseCoveredPages(tid, tableId);
+        }
+        //下次在页面锁数量翻倍后再尝试，避免每次加锁都扫描一遍
+        locks.nextEscalation.put(tableId, Math.max(escalationThreshold, count.get() * 2));
+    }
 
-            //检查是否有共享锁（读锁）
-            else {
-                Set<TransactionId> readTransactions = readLock.get(pid);
-                if (readTransactions != null && readTransactions.contains(tid)) return true;
-                return false;
+    //释放被tid的表锁覆盖的所有页面锁和元组锁
+    private void releaseCoveredPages(TransactionId tid, int tableId) {
+        HeldLocks locks = held.get(tid);
+        LockMode tableMode = getTableLockMode(tid, tableId);
+        if (locks == null || tableMode == null) return;
+        for (Map.Entry<Object, LockMode> lock : new ArrayList<>(locks.modes.entrySet())) {
+            Object key = lock.getKey();
+            PageId pid = key instanceof RecordId ? ((RecordId) key).getPageId()
+                    : key instanceof PageId ? (PageId) key : null;
+            if (pid != null && pid.getTableId() == tableId && tableMode.covers(lock.getValue())) {
+                release(tid, key);
             }
         }
     }
 
-    //释放事务tid在页面pid上的所有锁
-    public void releasePage(TransactionId tid, PageId pid) {
-        if (pid == null || tid == null) {
-            return;
+    //must hold all latches. 等待图中tid的出边：与它的请求不兼容的持有者，以及排在它前面的请求
+    private Set<TransactionId> waitsFor(TransactionId tid) {
+        Set<TransactionId> ans = new HashSet<>();
+        Set<LockRequest> reqs = waiting.get(tid);
+        if (reqs == null) return ans;
+        for (LockRequest req : reqs) {
+            if (req.aborted || req.granted) continue;
+            LockEntry entry = stripeFor(req.key).lockTable.get(req.key);
+            if (entry == null) continue;
+            for (Map.Entry<TransactionId, LockMode> holder : entry.holders.entrySet()) {
+                if (holder.getKey().equals(tid)) continue;
+                if (!req.mode.compatible(holder.getValue())) ans.add(holder.getKey());
+            }
+            for (LockRequest ahead : entry.waiters) {
+                if (ahead == req) break;
+                if (!ahead.aborted && !ahead.tid.equals(tid)) ans.add(ahead.tid);
+            }
         }
+        return ans;
+    }
 
-        synchronized (writeLock) {
-            //释放写锁
-            if (writeLock.get(pid) != null && writeLock.get(pid).equals(tid)) {
-                writeLock.remove(pid);
+    /**
+     * Searches the waits-for graph for a cycle through tid, and aborts the
+     * waiting requests of the youngest transaction on it.
+     * Must not hold any latch.
+     *
+     * @return the victim, or null if tid is not deadlocked
+     */
+    private TransactionId detectDeadlock(TransactionId tid) {
+        lockAll();
+        try {
+            long start = System.nanoTime();
+            List<TransactionId> cycle = findCycle(tid, tid, new ArrayList<>(), new HashSet<>());
+            long elapsed = System.nanoTime() - start;
+            detectionRuns.incrementAndGet();
+            detectionNanos.addAndGet(elapsed);
+            maxDetectionNanos.accumulateAndGet(elapsed, Math::max);
+            if (cycle == null) return null;
+            //事务id递增分配，id最大的就是最年轻的事务
+            TransactionId victim = cycle.get(0);
+            for (TransactionId t : cycle) {
+                if (t.getId() > victim.getId()) victim = t;
             }
+            deadlockAborts.incrementAndGet();
+            //在持有所有latch时就标记abort，否则其他线程可能再次发现同一个环
+            abortWaiting(victim);
+            return victim;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    //must hold all latches. 深度优先搜索从cur出发回到start的路径
+    private List<TransactionId> findCycle(TransactionId start, TransactionId cur,
+                                          List<TransactionId> path, Set<TransactionId> visited) {
+        path.add(cur);
+        visited.add(cur);
+        for (TransactionId next : waitsFor(cur)) {
+            if (next.equals(start)) return path;
+            if (visited.contains(next)) continue;
+            List<TransactionId> cycle = findCycle(start, next, path, visited);
+            if (cycle != null) return cycle;
+        }
+        path.remove(path.size() - 1);
+        return null;
+    }
+
+    //must hold all latches. 让victim正在等待的请求全部abort
+    private void abortWaiting(TransactionId victim) {
+        Set<LockRequest> reqs = waiting.get(victim);
+        if (reqs == null) return;
+        for (LockRequest req : reqs) {
+            req.aborted = true;
+            req.granted_cond.signal();
+        }
+    }
 
-            //释放读锁
-            Set<TransactionId> sharedTransactions = readLock.get(pid);
-            if (sharedTransactions != null) {
-                sharedTransactions.remove(tid);
+    //must hold the latch of req's stripe
+    private void addWaiting(LockRequest req) {
+        waiting.compute(req.tid, (k, reqs) -> {
+            if (reqs == null) reqs = ConcurrentHashMap.newKeySet();
+            reqs.add(req);
+            return reqs;
+        });
+    }
+
+    //must hold the latch of req's stripe
+    private void removeWaiting(LockRequest req) {
+        waiting.computeIfPresent(req.tid, (k, reqs) -> {
+            reqs.remove(req);
+            return reqs.isEmpty() ? null : reqs;
+        });
+    }
+
+    //must hold the latch of key's stripe
+    private void grant(LockEntry entry, TransactionId tid, Object key, LockMode mode) {
+        LockMode previous = entry.holders.get(tid);
+        LockMode granted = mode.combine(previous);
+        entry.holders.put(tid, granted);
+        HeldLocks locks = held.computeIfAbsent(tid, k -> new HeldLocks());
+        locks.modes.put(key, granted);
+        if (previous == null && key instanceof PageId) {
+            locks.pageCounts.computeIfAbsent(((PageId) key).getTableId(), k -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    //must hold the latch of key's stripe. 按FIFO顺序授予队首所有可以授予的请求
+    private void grantWaiters(LockEntry entry, Object key) {
+        while (!entry.waiters.isEmpty()) {
+            LockRequest req = entry.waiters.getFirst();
+            if (!entry.compatible(req.tid, req.mode)) break;
+            entry.waiters.removeFirst();
+            grant(entry, req.tid, key, req.mode);
+            req.granted = true;
+            req.granted_cond.signal();
+        }
+    }
+
+    //释放tid在key上的锁
+    private void release(TransactionId tid, Object key) {
+        Stripe stripe = stripeFor(key);
+        stripe.latch.lock();
+        try {
+            HeldLocks locks = held.get(tid);
+            if (locks != null && locks.modes.remove(key) != null && key instanceof PageId) {
+                AtomicInteger count = locks.pageCounts.get(((PageId) key).getTableId());
+                if (count != null) count.decrementAndGet();
             }
+            LockEntry entry = stripe.lockTable.get(key);
+            if (entry == null) return;
+            if (entry.holders.remove(tid) != null) {
+                grantWaiters(entry, key);
+            }
+            if (entry.isEmpty()) stripe.lockTable.remove(key);
+        } finally {
+            stripe.latch.unlock();
         }
     }
 
-    public boolean isTimeOut(TransactionId tid){
-        return System.currentTimeMillis() - tid.beginTime >= Transaction_Limit_Time;
+    //must hold the latch of req's stripe. 放弃一个还没有授予的请求
+    private void cancel(Stripe stripe, LockEntry entry, LockRequest req) {
+        entry.waiters.remove(req);
+        //队首的请求离开后，后面的请求可能可以授予了
+        grantWaiters(entry, req.key);
+        if (entry.isEmpty() && stripe.lockTable.get(req.key) == entry) stripe.lockTable.remove(req.key);
     }
 
-    // 当比如说两个事务之间出现死锁时，将其中一个事务直接reset（所有操作也直接abort），重新建立一个事务，再抛出一个异常
-    // 个人感觉应该不会出现脏读等问题，因为每个事务进行读或写操作时必须先持有唯一的排他锁writeLock
+    // 事务被选为死锁的牺牲者时，直接abort它的所有操作并释放锁，再抛出一个异常
     private void dealWithPotentialDeadlocks(TransactionId tid) throws TransactionAbortedException{
         try {
             Database.getBufferPool().transactionComplete(tid, false);
-            tid.resetBeginTime();
         } catch (IOException e) {
             Debug.log("Abort Dead lock failed!! This shouldn't happen");
         }
@@ -125,21 +730,22 @@ public class TransactionHelp {
      * Only for debugging
      */
     public void showLocksOnPages() {
-        synchronized (writeLock) {
-            for (Map.Entry<PageId, TransactionId> group : writeLock.entrySet()) {
-                PageId pid = group.getKey();
-                TransactionId xlock = group.getValue();
-                Debug.log("Page#" + pid.getPageNumber() + " has X-Lock: " + xlock.getId());
-            }
-
-            for (Map.Entry<PageId, Set<TransactionId>> group : readLock.entrySet()) {
-                PageId pid = group.getKey();
-                Set<TransactionId> slocks = group.getValue();
-                for (TransactionId slock : slocks) {
-                    Debug.log("Page#" + pid.getPageNumber() + " has S-Lock: " + slock.getId());
+        lockAll();
+        try {
+            for (Stripe stripe : stripes) {
+                for (Map.Entry<Object, LockEntry> group : stripe.lockTable.entrySet()) {
+                    Object key = group.getKey();
+                    String name = key instanceof PageId ? "Page#" + ((PageId) key).getPageNumber() : key.toString();
+                    for (Map.Entry<TransactionId, LockMode> holder : group.getValue().holders.entrySet()) {
+                        Debug.log(name + " has " + holder.getValue() + "-Lock: " + holder.getKey().getId());
+                    }
+                    for (LockRequest req : group.getValue().waiters) {
+                        Debug.log(name + " waited on by " + req.tid.getId() + " for " + req.mode + "-Lock");
+                    }
                 }
             }
+        } finally {
+            unlockAll();
         }
-
     }
 }
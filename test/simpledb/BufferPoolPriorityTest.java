@@ -0,0 +1,81 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolPriorityTest extends TestUtil.CreateHeapFile {
+    private TransactionId tid;
+    private HeapFile hf;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // heap file should have ~10 pages
+        hf = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+        bp = Database.resetBufferPool(4);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * High priority pages survive a scan that overflows the buffer pool
+     */
+    @Test public void highPriorityStaysResident() throws Exception {
+        PageId p0 = new HeapPageId(hf.getId(), 0);
+        PageId p1 = new HeapPageId(hf.getId(), 1);
+        Page high0 = bp.getPage(tid, p0, Permissions.READ_ONLY, BufferPool.Priority.HIGH);
+        Page high1 = bp.getPage(tid, p1, Permissions.READ_ONLY, BufferPool.Priority.HIGH);
+        assertEquals(2, bp.getNumResidentPages(BufferPool.Priority.HIGH));
+
+        for (int i = 2; i < hf.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+
+        assertEquals(4, bp.getNumResidentPages());
+        assertEquals(2, bp.getNumResidentPages(BufferPool.Priority.HIGH));
+        assertEquals(2, bp.getNumResidentPages(BufferPool.Priority.NORMAL));
+        assertSame(high0, bp.getPage(tid, p0, Permissions.READ_ONLY));
+        assertSame(high1, bp.getPage(tid, p1, Permissions.READ_ONLY));
+    }
+
+    /**
+     * High priority pages are still evicted once no normal page is left
+     */
+    @Test public void highPriorityEvictedLast() throws Exception {
+        for (int i = 0; i < 4; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY, BufferPool.Priority.HIGH);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 4), Permissions.READ_ONLY);
+
+        assertEquals(4, bp.getNumResidentPages());
+        assertEquals(3, bp.getNumResidentPages(BufferPool.Priority.HIGH));
+        assertEquals(1, bp.getNumResidentPages(BufferPool.Priority.NORMAL));
+    }
+
+    /**
+     * B+ tree index pages other than leaves are fetched with high priority
+     */
+    @Test public void btreePagePriority() {
+        int tableid = hf.getId();
+        assertEquals(BufferPool.Priority.HIGH, BTreeFile.getPriority(new BTreePageId(tableid, 0, BTreePageId.ROOT_PTR)));
+        assertEquals(BufferPool.Priority.HIGH, BTreeFile.getPriority(new BTreePageId(tableid, 1, BTreePageId.INTERNAL)));
+        assertEquals(BufferPool.Priority.HIGH, BTreeFile.getPriority(new BTreePageId(tableid, 1, BTreePageId.HEADER)));
+        assertEquals(BufferPool.Priority.NORMAL, BTreeFile.getPriority(new BTreePageId(tableid, 1, BTreePageId.LEAF)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPriorityTest.class);
+    }
+}
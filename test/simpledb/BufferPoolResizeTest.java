@@ -0,0 +1,88 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolResizeTest extends TestUtil.CreateHeapFile {
+    private TransactionId tid;
+    private HeapFile hf;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // heap file should have ~10 pages
+        hf = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+        bp = Database.resetBufferPool(20);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void readAllPages() throws Exception {
+        for (int i = 0; i < hf.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Unit test for BufferPool.resize() shrinking the pool
+     */
+    @Test public void shrink() throws Exception {
+        readAllPages();
+        assertEquals(10, bp.getNumResidentPages());
+
+        Database.resizeBufferPool(4);
+        assertSame(bp, Database.getBufferPool());
+        assertEquals(4, bp.getNumPages());
+        assertEquals(4, bp.getNumResidentPages());
+
+        // the pool keeps working at its new size
+        readAllPages();
+        assertTrue(bp.getNumResidentPages() <= 4);
+    }
+
+    /**
+     * Unit test for BufferPool.resize() growing the pool
+     */
+    @Test public void grow() throws Exception {
+        bp.resize(5);
+        readAllPages();
+        assertEquals(5, bp.getNumResidentPages());
+
+        bp.resize(30);
+        assertEquals(30, bp.getNumPages());
+        assertEquals(5, bp.getNumResidentPages());
+        readAllPages();
+        assertEquals(10, bp.getNumResidentPages());
+    }
+
+    /**
+     * Shrinking below the number of dirty pages must not evict them
+     */
+    @Test public void shrinkKeepsDirtyPages() throws Exception {
+        for (int i = 0; i < 3; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE).markDirty(true, tid);
+        bp.getPage(tid, new HeapPageId(hf.getId(), 3), Permissions.READ_ONLY);
+
+        bp.resize(1);
+        assertEquals(3, bp.getNumResidentPages());
+        for (int i = 0; i < 3; i++)
+            assertTrue(bp.holdsLock(tid, new HeapPageId(hf.getId(), i)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolResizeTest.class);
+    }
+}
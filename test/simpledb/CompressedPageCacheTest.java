@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CompressedPageCacheTest extends TestUtil.CreateHeapFile {
+
+    /** HeapFile that counts the pages read from disk */
+    class InstrumentedHeapFile extends HeapFile {
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount += 1;
+            return super.readPage(pid);
+        }
+
+        public int readCount = 0;
+    }
+
+    private static final int PAGES = 10;
+    private InstrumentedHeapFile table;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504*PAGES, 1000, null, tuples);
+        table = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Evicted pages are served from the compressed cache on the next scan
+     */
+    @Test public void rescanHitsCompressedCache() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.setCompressedCacheCapacity(PAGES);
+
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(PAGES, table.readCount);
+        assertEquals(PAGES - 2, bp.getCompressedCache().size());
+        assertTrue(bp.getCompressedCache().getStoredBytes() < (PAGES - 2) * BufferPool.getPageSize());
+
+        // only the pages still resident in the buffer pool are not compressed;
+        // everything else must come back without a disk read
+        table.readCount = 0;
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(0, table.readCount);
+        assertTrue(bp.getCompressedCache().getHits() >= PAGES - 2);
+    }
+
+    /**
+     * With the second tier disabled every miss goes to disk
+     */
+    @Test public void disabledByDefault() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        SystemTestUtil.matchTuples(table, tuples);
+        table.readCount = 0;
+        SystemTestUtil.matchTuples(table, tuples);
+        assertTrue(table.readCount >= PAGES - 2);
+        assertEquals(0, bp.getCompressedCache().size());
+    }
+
+    /**
+     * The compressed cache never holds more than its capacity, and discarded
+     * pages are dropped from it
+     */
+    @Test public void capacityAndInvalidation() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        bp.setCompressedCacheCapacity(3);
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(3, bp.getCompressedCache().size());
+
+        bp.setCompressedCacheCapacity(5);
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        int before = bp.getCompressedCache().size();
+        // 被淘汰的页面取决于遍历顺序，找一个确实在缓存里的页面
+        PageId cached = null;
+        for (int i = 0; i < PAGES && cached == null; i++) {
+            PageId pid = new HeapPageId(table.getId(), i);
+            if (bp.getCompressedCache().contains(pid)) cached = pid;
+        }
+        assertNotNull(cached);
+        bp.discardPage(cached);
+        assertFalse(bp.getCompressedCache().contains(cached));
+        assertEquals(before - 1, bp.getCompressedCache().size());
+    }
+
+    /**
+     * A cached copy that cannot be rebuilt is dropped and reported, not
+     * returned as a miss.
+     */
+    @Test public void undecodablePage() throws Exception {
+        CompressedPageCache cache = new CompressedPageCache(PAGES);
+        // 没有注册编解码器的页面id类型
+        HeapPageId pid = new HeapPageId(table.getId(), 0) {};
+        cache.put(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        assertTrue(cache.contains(pid));
+        try {
+            cache.take(pid);
+            fail("expected the page not to be rebuilt");
+        } catch (DbException e) {
+            // expected
+        }
+        assertFalse(cache.contains(pid));
+        assertEquals(0, cache.getStoredBytes());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedPageCacheTest.class);
+    }
+}
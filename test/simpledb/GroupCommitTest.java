@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+  private LogFile log;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    log = Database.getLogFile();
+  }
+
+  // commits threads * perThread empty transactions concurrently
+  private void commitConcurrently(int threads, final int perThread) throws Exception {
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      Thread t = new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < perThread; j++) {
+              TransactionId tid = new TransactionId();
+              log.logXactionBegin(tid);
+              log.logCommit(tid);
+            }
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      workers.add(t);
+      t.start();
+    }
+    for (Thread t : workers) t.join();
+    assertTrue(errors.toString(), errors.isEmpty());
+  }
+
+  /**
+   * A single committer forces the log once per commit.
+   */
+  @Test public void forcePerCommitWhenAlone() throws Exception {
+    long forces = log.getNumForces();
+    commitConcurrently(1, 10);
+    assertEquals(forces + 10, log.getNumForces());
+  }
+
+  /**
+   * Concurrent committers share forces when they wait for a batch.
+   */
+  @Test public void concurrentCommitsShareForces() throws Exception {
+    log.setGroupCommit(20, TimeUnit.MILLISECONDS, 8);
+    long forces = log.getNumForces();
+    commitConcurrently(8, 10);
+    assertTrue(log.getNumForces() - forces < 80);
+  }
+
+  /**
+   * An explicit force still covers every record written before it.
+   */
+  @Test public void explicitForce() throws Exception {
+    long forces = log.getNumForces();
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    log.force();
+    assertEquals(forces + 1, log.getNumForces());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(GroupCommitTest.class);
+  }
+}
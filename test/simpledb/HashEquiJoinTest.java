@@ -0,0 +1,66 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  private static final JoinPredicate EQUALS = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+  /**
+   * A build side that fits in memory is joined without spilling.
+   */
+  @Test public void inMemory() throws Exception {
+    int[] outer = TestUtil.cyclicKeys(200, 50);
+    int[] inner = TestUtil.cyclicKeys(300, 75);
+    HashEquiJoin op = new HashEquiJoin(EQUALS, TestUtil.createKeyedTupleList(outer),
+                                       TestUtil.createKeyedTupleList(inner));
+    op.open();
+    assertEquals(TestUtil.expectedJoinCount(outer, inner, Predicate.Op.EQUALS), TestUtil.countJoinResults(op, EQUALS));
+    assertEquals(0, op.spilledPartitions);
+  }
+
+  /**
+   * A build side larger than the memory budget is partitioned to disk,
+   * and rewinding gives the same result.
+   */
+  @Test public void spills() throws Exception {
+    int[] outer = TestUtil.cyclicKeys(3000, 700);
+    int[] inner = TestUtil.cyclicKeys(2000, 1000);
+    HashEquiJoin op = new HashEquiJoin(EQUALS, TestUtil.createKeyedTupleList(outer),
+                                       TestUtil.createKeyedTupleList(inner),
+                                       200 * TestUtil.KEYED_TUPLE_BYTES);
+    op.open();
+    assertEquals(TestUtil.expectedJoinCount(outer, inner, Predicate.Op.EQUALS), TestUtil.countJoinResults(op, EQUALS));
+    assertTrue(op.spilledPartitions > 0);
+    op.rewind();
+    assertEquals(TestUtil.expectedJoinCount(outer, inner, Predicate.Op.EQUALS), TestUtil.countJoinResults(op, EQUALS));
+    op.close();
+  }
+
+  /**
+   * Tuples sharing one key are partitioned again, then joined in chunks.
+   */
+  @Test public void skewedKeys() throws Exception {
+    int[] outer = TestUtil.cyclicKeys(1000, 1);
+    int[] inner = TestUtil.cyclicKeys(30, 3);
+    HashEquiJoin op = new HashEquiJoin(EQUALS, TestUtil.createKeyedTupleList(outer),
+                                       TestUtil.createKeyedTupleList(inner),
+                                       64 * TestUtil.KEYED_TUPLE_BYTES);
+    op.open();
+    assertEquals(TestUtil.expectedJoinCount(outer, inner, Predicate.Op.EQUALS), TestUtil.countJoinResults(op, EQUALS));
+    assertEquals(HashEquiJoin.MAX_DEPTH, op.maxDepthReached);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Vector;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+  private BTreeFile index;
+  private TransactionId tid;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    index = BTreeUtility.createRandomBTreeFile(2, 5000, 1000, null, new ArrayList<ArrayList<Integer>>(), 1);
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Each outer tuple probes the index once, and the matches are those of a
+   * nested-loop join.
+   */
+  @Test public void equality() throws Exception {
+    int[] outer = TestUtil.steppedKeys(50, 17);
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(p, TestUtil.createKeyedTupleList(outer),
+                                                     new SeqScan(tid, index.getId(), "t"));
+    int expected = TestUtil.countTuples(new Join(p, TestUtil.createKeyedTupleList(outer),
+                                                  new SeqScan(tid, index.getId(), "t")));
+    assertTrue(expected > 0);
+    op.open();
+    int n = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(3));
+      n++;
+    }
+    assertEquals(expected, n);
+    assertEquals(outer.length, op.probes);
+    op.rewind();
+    assertEquals(expected, TestUtil.drain(op));
+    op.close();
+  }
+
+  /**
+   * Range operators probe the index too, and filters over the inner scan
+   * are applied to the tuples found.
+   */
+  @Test public void rangesWithFilter() throws Exception {
+    int[] outer = TestUtil.steppedKeys(20, 49);
+    Predicate.Op[] ops = {Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                          Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ};
+    Predicate filter = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(300));
+    for (Predicate.Op o : ops) {
+      JoinPredicate p = new JoinPredicate(0, o, 1);
+      OpIterator inner = new Filter(filter, new SeqScan(tid, index.getId(), "t"));
+      assertTrue(IndexNestedLoopJoin.canProbe(p, inner));
+      int expected = TestUtil.countTuples(new Join(p, TestUtil.createKeyedTupleList(outer),
+                                                    new Filter(filter, new SeqScan(tid, index.getId(), "t"))));
+      assertEquals(o.toString(), expected,
+                   TestUtil.countTuples(new IndexNestedLoopJoin(p, TestUtil.createKeyedTupleList(outer), inner)));
+    }
+    // 不是键字段或者不能用索引的运算符
+    assertTrue(!IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                                             new SeqScan(tid, index.getId(), "t")));
+    assertTrue(!IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 1),
+                                             new SeqScan(tid, index.getId(), "t")));
+  }
+
+  /**
+   * The optimizer instantiates an index join when the inner table has a B+
+   * tree on the join field, and estimates it cheaper than scanning the
+   * inner table for each outer tuple.
+   */
+  @Test public void optimizer() throws Exception {
+    File outerFile = File.createTempFile("outer", ".dat");
+    outerFile.deleteOnExit();
+    HeapFile heap = Utility.createEmptyHeapFile(outerFile.getAbsolutePath(), 2);
+    index = BTreeUtility.openBTreeFile(2, "c", index.getFile(), 1); // names the fields
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(heap.getId(), "h");
+    lp.addScan(index.getId(), "t");
+    String key = index.getTupleDesc().getFieldName(1);
+    LogicalJoinNode lj = new LogicalJoinNode("h", "t", "h." + heap.getTupleDesc().getFieldName(0), "t." + key,
+                                             Predicate.Op.EQUALS);
+
+    OpIterator j = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, heap.getId(), "h"),
+                                                 new SeqScan(tid, index.getId(), "t"));
+    assertTrue(j instanceof IndexNestedLoopJoin);
+    j = JoinOptimizer.instantiateJoin(lj.swapInnerOuter(), new SeqScan(tid, index.getId(), "t"),
+                                      new SeqScan(tid, heap.getId(), "h"));
+    assertTrue(j instanceof Join);
+
+    JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+    double scanCost = index.numPages() * 1000.0;
+    double indexed = jo.estimateJoinCost(lj, 100, 5000, 1000, scanCost);
+    double scanned = jo.estimateJoinCost(lj.swapInnerOuter(), 100, 5000, 1000, scanCost);
+    assertTrue(indexed > 1000);
+    assertTrue(indexed < 100 * scanCost);
+    assertEquals(1000 + 100 * scanCost + 100.0 * 5000, scanned, 0.001);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
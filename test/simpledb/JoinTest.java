@@ -105,6 +105,34 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Joins with blocks smaller than the outer relation give the same result.
+   */
+  @Test public void smallBlocks() throws Exception {
+    int tupleBytes = Utility.getTupleDesc(width1).getSize();
+    for (int tuples = 1; tuples <= 3; tuples++) {
+      Join op = new Join(new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0), scan1, scan2, tuples * tupleBytes);
+      assertEquals(tuples, op.getBlockTuples());
+      op.open();
+      gtJoin.open();
+      TestUtil.matchAllTuples(gtJoin, op);
+      gtJoin.close();
+      op.close();
+    }
+  }
+
+  /**
+   * Long runs of outer tuples without a match do not recurse.
+   */
+  @Test public void longOuterWithoutMatches() throws Exception {
+    int n = 100000;
+    int[] outer = new int[n * width1];
+    OpIterator big = TestUtil.createTupleList(width1, outer);
+    Join op = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0), big, scan2, Utility.getTupleDesc(width1).getSize());
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,78 @@
+package simpledb;
+
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogBufferTest extends SimpleDbTestBase {
+  // type, tid and start offset
+  private static final int BEGIN_RECORD_SIZE = 4 + 8 + 8;
+
+  private LogFile log;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    log = Database.getLogFile();
+  }
+
+  /**
+   * Records stay in the log buffer until the log is forced.
+   */
+  @Test public void recordsAreBuffered() throws Exception {
+    log.logXactionBegin(new TransactionId());
+    assertEquals(0, log.getWrittenLength());
+    log.force();
+    assertEquals(BEGIN_RECORD_SIZE, log.getWrittenLength());
+  }
+
+  /**
+   * A full buffer is written by the background writer without a force, and
+   * a force writes the rest.
+   */
+  @Test public void largeVolume() throws Exception {
+    int n = 2 * LogFile.WRITE_THRESHOLD / BEGIN_RECORD_SIZE;
+    for (int i = 0; i < n; i++) log.logXactionBegin(new TransactionId());
+    long deadline = System.currentTimeMillis() + 5000;
+    while (log.getWrittenLength() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+    assertTrue(log.getWrittenLength() > 0);
+
+    log.force();
+    assertEquals((long) n * BEGIN_RECORD_SIZE, log.getWrittenLength());
+    assertEquals(n, log.getTotalRecords());
+  }
+
+  /**
+   * A checkpoint written through the buffer is found through the log header.
+   */
+  @Test public void checkpointHeader() throws Exception {
+    log.logXactionBegin(new TransactionId());
+    log.logCheckpoint();
+    log.logXactionBegin(new TransactionId());
+    log.force();
+
+    RandomAccessFile raf = new RandomAccessFile(log.logFile, "r");
+    long cp;
+    try {
+      cp = raf.readLong();
+    } finally {
+      raf.close();
+    }
+    assertTrue(cp > 0);
+    assertEquals(LogFile.CHECKPOINT_RECORD, log.readRecordAt(cp).type);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogBufferTest.class);
+  }
+}
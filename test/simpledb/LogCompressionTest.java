@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogCompressionTest extends SimpleDbTestBase {
+  private LogFile log;
+  private HeapFile hf;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    log = Database.getLogFile();
+    log.setCompression(true);
+    hf = Utility.createEmptyHeapFile(File.createTempFile("compressed", ".dat").getAbsolutePath(), 2);
+  }
+
+  @After public void tearDown() throws Exception {
+    log.setCompression(false);
+  }
+
+  // a page with every slot filled, so that the update is logged with full images
+  private HeapPage fullPage(HeapPageId pid) throws Exception {
+    HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+    for (int i = 0; page.getNumEmptySlots() > 0; i++) {
+      page.insertTuple(Utility.getHeapTuple(new int[] {i, i}));
+    }
+    return page;
+  }
+
+  // appends one update of page 0 and returns the size of its record
+  private long logFullPage(TransactionId tid, boolean compress) throws Exception {
+    log.setCompression(compress);
+    HeapPageId pid = new HeapPageId(hf.getId(), 0);
+    log.force();
+    long start = log.getWrittenLength();
+    log.logWrite(tid, new HeapPage(pid, HeapPage.createEmptyPageData()), fullPage(pid));
+    log.force();
+    LogFile.LogRecord record = log.readRecordAt(start);
+    assertEquals(LogFile.UPDATE_RECORD, record.type);
+    assertTrue(Arrays.equals(fullPage(pid).getPageData(), record.after));
+    return log.getWrittenLength() - start;
+  }
+
+  /**
+   * Compressed records are smaller and read back as the same images.
+   */
+  @Test public void compressedRecordsAreSmaller() throws Exception {
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    long plain = logFullPage(tid, false);
+    long compressed = logFullPage(tid, true);
+    assertTrue("compressed " + compressed + " plain " + plain, compressed < plain / 2);
+  }
+
+  /**
+   * Payloads that do not shrink are stored as they are.
+   */
+  @Test public void smallPayloadsAreNotCompressed() throws Exception {
+    assertNull(log.compress(new byte[LogFile.MIN_COMPRESSED_PAYLOAD - 1]));
+    byte[] noise = new byte[4096];
+    new java.util.Random(1).nextBytes(noise);
+    assertNull(log.compress(noise));
+    assertNotNull(log.compress(new byte[4096]));
+  }
+
+  /**
+   * Recovery redoes and undoes compressed records.
+   */
+  @Test public void recovery() throws Exception {
+    HeapPageId pid = new HeapPageId(hf.getId(), 0);
+    TransactionId committed = new TransactionId();
+    log.logXactionBegin(committed);
+    log.logWrite(committed, new HeapPage(pid, HeapPage.createEmptyPageData()), fullPage(pid));
+    log.logCommit(committed);
+
+    HeapPageId pid1 = new HeapPageId(hf.getId(), 1);
+    TransactionId loser = new TransactionId();
+    log.logXactionBegin(loser);
+    HeapPage page = fullPage(pid1);
+    hf.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+    log.logWrite(loser, new HeapPage(pid1, HeapPage.createEmptyPageData()), page);
+    hf.writePage(page);
+    log.force();
+
+    LogFile restarted = new LogFile(log.logFile);
+    restarted.recover();
+    assertEquals(1, restarted.lastUndoRecords);
+    assertTrue(Arrays.equals(fullPage(pid).getPageData(), hf.readPage(pid).getPageData()));
+    assertEquals(page.getNumSlots(), ((HeapPage) hf.readPage(pid1)).getNumEmptySlots());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogCompressionTest.class);
+  }
+}
@@ -0,0 +1,153 @@
+package simpledb;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * The primary and the replica share the Database of the test: the primary
+ * writes one table and the log, and the replica follows the log into
+ * another table.
+ */
+public class LogReplicaTest extends SimpleDbTestBase {
+  private HeapFile primary;
+  private HeapFile copy;
+  private LogReplica replica;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    primary = Utility.createEmptyHeapFile(File.createTempFile("primary", ".dat").getAbsolutePath(), 2);
+    copy = Utility.createEmptyHeapFile(File.createTempFile("replica", ".dat").getAbsolutePath(), 2);
+    Database.getLogFile().logCheckpoint();
+    replica = new LogReplica(Database.getLogFile().logFile, primary.getFile().getParentFile(),
+                             LogSegments.DEFAULT_SEGMENT_SIZE);
+    replica.mapTable(primary.getId(), copy.getId());
+  }
+
+  @After public void tearDown() throws Exception {
+    replica.close();
+  }
+
+  // runs a transaction inserting n tuples into the primary and returns it, not completed
+  private Transaction insert(int n) throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    for (int i = 0; i < n; i++) {
+      Database.getBufferPool().insertTuple(t.getId(), primary.getId(), Utility.getHeapTuple(new int[] {i, i}));
+    }
+    return t;
+  }
+
+  // counts the tuples of the replica's table in a read-only transaction
+  private int countReplica() throws Exception {
+    Transaction t = new Transaction(true);
+    t.start();
+    SeqScan scan = new SeqScan(t.getId(), copy.getId(), "");
+    int count = 0;
+    scan.open();
+    while (scan.hasNext()) {
+      scan.next();
+      count++;
+    }
+    scan.close();
+    t.commit();
+    return count;
+  }
+
+  /**
+   * Committed transactions are replayed into the replica's table.
+   */
+  @Test public void replaysCommitted() throws Exception {
+    insert(500).commit();
+    insert(10).commit();
+    assertEquals(2, replica.catchUp());
+    assertEquals(510, countReplica());
+    assertEquals(0, replica.catchUp());
+    assertEquals(510, countReplica());
+  }
+
+  /**
+   * Changes are not replayed before their transaction commits, and never
+   * if it aborts.
+   */
+  @Test public void skipsUncommitted() throws Exception {
+    Transaction t = insert(10);
+    Database.getBufferPool().flushPages(t.getId()); // logs the changes
+    replica.catchUp();
+    assertEquals(0, countReplica());
+    t.abort();
+    replica.catchUp();
+    assertEquals(0, countReplica());
+
+    insert(5).commit();
+    replica.catchUp();
+    assertEquals(5, countReplica());
+  }
+
+  /**
+   * A committed change to a table the replica cannot match stops replay
+   * at that transaction instead of being dropped, until the table is
+   * skipped.
+   */
+  @Test public void unknownTable() throws Exception {
+    HeapFile other = Utility.createEmptyHeapFile(File.createTempFile("other", ".dat").getAbsolutePath(), 2);
+    insert(3).commit();
+    Transaction t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), other.getId(), Utility.getHeapTuple(new int[] {1, 1}));
+    t.commit();
+    insert(4).commit();
+    try {
+      replica.catchUp();
+      fail("expected no replica table for " + other.getId());
+    } catch (java.io.IOException e) {
+      // expected
+    }
+    assertEquals(1, replica.getReplayedTransactions());
+    assertEquals(3, countReplica());
+
+    replica.skipTable(other.getId());
+    assertEquals(2, replica.catchUp());
+    assertEquals(7, countReplica());
+  }
+
+  /**
+   * The background follower catches up by itself, and a replica whose
+   * next record was truncated away reports it.
+   */
+  @Test public void followsAndFallsBehind() throws Exception {
+    replica.start(5, TimeUnit.MILLISECONDS);
+    insert(20).commit();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (replica.getReplayedTransactions() < 1 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+    assertEquals(20, countReplica());
+    replica.stop();
+
+    // 副本停下之后主库继续写，检查点把副本还没读的记录截掉
+    insert(1).commit();
+    Database.getLogFile().logCheckpoint();
+    try {
+      replica.catchUp();
+      fail("expected the replica to fall behind");
+    } catch (java.io.IOException e) {
+      // expected
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogReplicaTest.class);
+  }
+}
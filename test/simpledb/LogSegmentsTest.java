@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+  // type, tid and start offset
+  private static final int BEGIN_RECORD_SIZE = 4 + 8 + 8;
+  private static final long SEGMENT_SIZE = 256;
+
+  private File file;
+  private LogSegments segments;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("segmented", ".log");
+    segments = new LogSegments(file, SEGMENT_SIZE);
+  }
+
+  @After public void tearDown() throws Exception {
+    segments.clear();
+    file.delete();
+  }
+
+  private void commit(LogFile log, int n) throws Exception {
+    for (int i = 0; i < n; i++) {
+      TransactionId tid = new TransactionId();
+      log.logXactionBegin(tid);
+      log.logCommit(tid);
+    }
+  }
+
+  /**
+   * Records that cross segment boundaries are read back whole.
+   */
+  @Test public void recordsSpanSegments() throws Exception {
+    LogFile log = new LogFile(file, SEGMENT_SIZE);
+    int n = 50;
+    for (int i = 0; i < n; i++) log.logXactionBegin(new TransactionId());
+    log.force();
+    assertTrue(segments.segmentsOnDisk().size() > 1);
+    for (int i = 0; i < n; i++) {
+      assertEquals(LogFile.BEGIN_RECORD, log.readRecordAt((long) i * BEGIN_RECORD_SIZE).type);
+    }
+  }
+
+  /**
+   * Truncation removes whole segments below the oldest record still needed,
+   * without moving the records that remain.
+   */
+  @Test public void truncationRemovesSegments() throws Exception {
+    LogFile log = new LogFile(file, SEGMENT_SIZE);
+    commit(log, 100);
+    long end = log.getWrittenLength();
+    log.logCheckpoint();
+    assertEquals(end / SEGMENT_SIZE, (long) segments.segmentsOnDisk().first());
+    assertTrue(segments.segmentsOnDisk().size() <= 3);
+  }
+
+  /**
+   * A recycled segment holds stale records past the end of the log, which
+   * recovery must not take for new ones.
+   */
+  @Test public void recycledSegmentsAreNotReplayed() throws Exception {
+    LogFile log = new LogFile(file, SEGMENT_SIZE);
+    commit(log, 100);
+    log.logCheckpoint();
+    TransactionId loser = new TransactionId();
+    log.logXactionBegin(loser);
+    log.force();
+
+    LogFile restarted = new LogFile(file, SEGMENT_SIZE);
+    restarted.recover();
+    commit(restarted, 20);
+    restarted.logCheckpoint();
+
+    restarted = new LogFile(file, SEGMENT_SIZE);
+    restarted.recover();
+    assertEquals(0, restarted.lastRedoRecords);
+    assertEquals(0, restarted.lastUndoRecords);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogSegmentsTest.class);
+  }
+}
@@ -0,0 +1,217 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class OptimisticTest extends TestUtil.CreateHeapFile {
+  private HeapFile hf;
+  private HeapPageId p0;
+  private BufferPool bp;
+  private TransactionId tid1, tid2;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    // one page with 10 tuples and plenty of free slots
+    hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    p0 = new HeapPageId(hf.getId(), 0);
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    tid1 = new TransactionId();
+    tid2 = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    bp.transactionComplete(tid1, false);
+    bp.transactionComplete(tid2, false);
+  }
+
+  private static Tuple tuple(int value) {
+    return Utility.getHeapTuple(new int[] {value, value});
+  }
+
+  private int count(TransactionId tid) throws Exception {
+    int n = 0;
+    java.util.Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).iterator();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  private int countOnDisk() {
+    return ((HeapPage) hf.readPage(p0)).getNumSlots() - ((HeapPage) hf.readPage(p0)).getNumEmptySlots();
+  }
+
+  /**
+   * An optimistic transaction takes no locks, sees its own changes and
+   * keeps them private until it commits.
+   */
+  @Test public void privateUntilCommit() throws Exception {
+    bp.beginOptimistic(tid1);
+    bp.insertTuple(tid1, hf.getId(), tuple(-1));
+    assertEquals(11, count(tid1));
+    assertFalse(bp.holdsLock(tid1, p0));
+
+    // a locking transaction can write the page meanwhile
+    assertEquals(10, count(tid2));
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+    bp.transactionComplete(tid2, false);
+
+    bp.commitOptimistic(tid1);
+    assertEquals(11, countOnDisk());
+    assertFalse(bp.isOptimistic(tid1));
+    TransactionId tid3 = new TransactionId();
+    assertEquals(11, count(tid3));
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Of two optimistic transactions writing the same page, the second one
+   * to commit fails validation.
+   */
+  @Test public void writeConflict() throws Exception {
+    long aborts = bp.getOptimisticTransactions().getAborts();
+    bp.beginOptimistic(tid1);
+    bp.beginOptimistic(tid2);
+    bp.insertTuple(tid1, hf.getId(), tuple(-1));
+    bp.insertTuple(tid2, hf.getId(), tuple(-2));
+
+    bp.commitOptimistic(tid1);
+    try {
+      bp.commitOptimistic(tid2);
+      fail("expected validation to fail");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertEquals(aborts + 1, bp.getOptimisticTransactions().getAborts());
+    assertFalse(bp.isOptimistic(tid2));
+    assertEquals(11, countOnDisk());
+  }
+
+  /**
+   * A page read by an optimistic transaction and changed by a committed
+   * locking transaction makes it fail validation.
+   */
+  @Test public void readConflict() throws Exception {
+    bp.beginOptimistic(tid1);
+    assertEquals(10, count(tid1));
+
+    bp.insertTuple(tid2, hf.getId(), tuple(-2));
+    bp.transactionComplete(tid2, true);
+
+    try {
+      bp.commitOptimistic(tid1);
+      fail("expected validation to fail");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Rolling back a page an optimistic transaction read makes it fail
+   * validation, as a committed write would.
+   */
+  @Test public void rollbackConflict() throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    bp.insertTuple(t.getId(), hf.getId(), tuple(-2));
+    bp.flushPages(t.getId());
+
+    bp.beginOptimistic(tid1);
+    count(tid1);
+    t.abort();
+    assertEquals(10, countOnDisk());
+    try {
+      bp.commitOptimistic(tid1);
+      fail("expected validation to fail");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+  }
+
+  /**
+   * A transaction that fails validation makes Transaction.commitOptimistic
+   * throw, and recovery does not count it as committed.
+   */
+  @Test public void failedCommit() throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    bp.beginOptimistic(t.getId());
+    bp.insertTuple(t.getId(), hf.getId(), tuple(-1));
+
+    bp.insertTuple(tid2, hf.getId(), tuple(-2));
+    bp.transactionComplete(tid2, true);
+
+    try {
+      t.commitOptimistic();
+      fail("expected validation to fail");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertFalse(bp.isOptimistic(t.getId()));
+    assertEquals(11, countOnDisk());
+  }
+
+  /**
+   * Optimistic transactions only commit with commitOptimistic, so that a
+   * failed validation cannot pass unnoticed.
+   */
+  @Test public void commitOnlyOptimistically() throws Exception {
+    bp.beginOptimistic(tid1);
+    try {
+      bp.transactionComplete(tid1, true);
+      fail("expected commit to be refused");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertTrue(bp.isOptimistic(tid1));
+
+    Transaction t = new Transaction();
+    t.start();
+    bp.beginOptimistic(t.getId());
+    try {
+      t.commit();
+      fail("expected commit to be refused");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    t.commitOptimistic();
+    assertFalse(bp.isOptimistic(t.getId()));
+  }
+
+  /**
+   * Table locks are not taken for optimistic transactions either.
+   */
+  @Test public void noTableLock() throws Exception {
+    bp.beginOptimistic(tid1);
+    bp.lockTable(tid1, hf.getId(), Permissions.READ_ONLY);
+    assertNull(TransactionHelp.getTransactionHelp().getTableLockMode(tid1, hf.getId()));
+  }
+
+  /**
+   * An aborted optimistic transaction leaves nothing behind.
+   */
+  @Test public void abort() throws Exception {
+    bp.beginOptimistic(tid1);
+    bp.insertTuple(tid1, hf.getId(), tuple(-1));
+    bp.transactionComplete(tid1, false);
+    assertFalse(bp.isOptimistic(tid1));
+    assertEquals(10, countOnDisk());
+    assertEquals(10, count(tid2));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OptimisticTest.class);
+  }
+}
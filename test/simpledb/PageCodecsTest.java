@@ -0,0 +1,97 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageCodecsTest extends SimpleDbTestBase {
+
+  private PageId roundTrip(PageId pid) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PageCodecs.writePageId(new DataOutputStream(bytes), pid);
+    assertEquals(1 + 4 * pid.serialize().length, bytes.size());
+    return PageCodecs.readPageId(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  /**
+   * Heap and B+ tree page ids are written as a tag and their fields.
+   */
+  @Test public void pageIds() throws Exception {
+    PageId heap = new HeapPageId(7, 3);
+    PageId btree = new BTreePageId(7, 3, BTreePageId.LEAF);
+    assertEquals(heap, roundTrip(heap));
+    assertEquals(btree, roundTrip(btree));
+    assertTrue(roundTrip(btree) instanceof BTreePageId);
+  }
+
+  /**
+   * A page is rebuilt from its id and bytes.
+   */
+  @Test public void decode() throws Exception {
+    HeapFile hf = Utility.createEmptyHeapFile(File.createTempFile("codec", ".dat").getAbsolutePath(), 2);
+    HeapPageId pid = new HeapPageId(hf.getId(), 0);
+    HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+    page.insertTuple(Utility.getHeapTuple(new int[] {1, 2}));
+    Page decoded = PageCodecs.decode(pid, page.getPageData());
+    assertTrue(decoded instanceof HeapPage);
+    assertTrue(Arrays.equals(page.getPageData(), decoded.getPageData()));
+  }
+
+  /**
+   * Unknown tags are reported as corrupt input, and tags cannot be reused.
+   */
+  @Test public void unknownAndDuplicateTags() throws Exception {
+    try {
+      PageCodecs.readPageId(new DataInputStream(new ByteArrayInputStream(new byte[] {99, 0, 0, 0, 0})));
+      fail("expected StreamCorruptedException");
+    } catch (StreamCorruptedException e) {
+      // expected
+    }
+    try {
+      PageCodecs.register(PageCodecs.HEAP, HeapPageId.class, 2, f -> null, (pid, data) -> null);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * UPDATE records hold no class names.
+   */
+  @Test public void compactUpdateRecord() throws Exception {
+    HeapFile hf = Utility.createEmptyHeapFile(File.createTempFile("codec", ".dat").getAbsolutePath(), 2);
+    HeapPageId pid = new HeapPageId(hf.getId(), 0);
+    byte[] full = new byte[BufferPool.getPageSize()];
+    Arrays.fill(full, (byte) 0xff);
+    HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+    HeapPage after = new HeapPage(pid, full);
+
+    LogFile log = Database.getLogFile();
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    log.force();
+    long start = log.getWrittenLength();
+    log.logWrite(tid, before, after);
+    log.force();
+    int image = 1 + 2 * 4 + 4 + BufferPool.getPageSize();
+    assertEquals(4 + 8 + 2 * image + 8, log.getWrittenLength() - start);
+    assertEquals(LogFile.UPDATE_RECORD, log.readRecordAt(start).type);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PageCodecsTest.class);
+  }
+}
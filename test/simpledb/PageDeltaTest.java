@@ -0,0 +1,76 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+  private HeapPage before;
+  private HeapPage after;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    HeapFile hf = Utility.createEmptyHeapFile(File.createTempFile("delta", ".dat").getAbsolutePath(), 2);
+    HeapPageId pid = new HeapPageId(hf.getId(), 0);
+    before = new HeapPage(pid, HeapPage.createEmptyPageData());
+    after = new HeapPage(pid, HeapPage.createEmptyPageData());
+    after.insertTuple(Utility.getHeapTuple(new int[] {1, 2}));
+  }
+
+  /**
+   * A single-tuple insert changes a handful of bytes, and redo and undo
+   * turn one image into the other.
+   */
+  @Test public void redoAndUndo() throws Exception {
+    PageDelta delta = PageDelta.diff(before.getPageData(), after.getPageData());
+    assertTrue(delta.getSerializedSize() < 64);
+
+    byte[] data = before.getPageData();
+    delta.redo(data);
+    assertTrue(Arrays.equals(after.getPageData(), data));
+    delta.undo(data);
+    assertTrue(Arrays.equals(before.getPageData(), data));
+  }
+
+  /**
+   * logWrite writes a DELTA record far smaller than two page images, and
+   * log truncation keeps it.
+   */
+  @Test public void logWriteUsesDelta() throws Exception {
+    LogFile log = Database.getLogFile();
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    log.force();
+    long start = log.getWrittenLength();
+    log.logWrite(tid, before, after);
+    log.force();
+    assertTrue(log.getWrittenLength() - start < 2 * BufferPool.getPageSize() / 10);
+
+    // tid is still running, so its records survive the truncation
+    log.logCheckpoint();
+    assertEquals(LogFile.BEGIN_RECORD, log.readRecordAt(0).type);
+    LogFile.LogRecord record = log.readRecordAt(4 + 8 + 8);
+    assertEquals(LogFile.DELTA_RECORD, record.type);
+    assertEquals(tid.getId(), record.tid);
+    assertEquals(after.getId(), record.getPageId());
+    byte[] data = before.getPageData();
+    record.redo(data);
+    assertTrue(Arrays.equals(after.getPageData(), data));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PageDeltaTest.class);
+  }
+}
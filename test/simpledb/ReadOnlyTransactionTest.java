@@ -0,0 +1,84 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadOnlyTransactionTest extends TestUtil.CreateHeapFile {
+  private HeapFile hf;
+  private HeapPageId p0;
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    p0 = new HeapPageId(hf.getId(), 0);
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+  }
+
+  @After public void tearDown() throws Exception {
+    bp.setSnapshotIsolation(false);
+  }
+
+  /**
+   * A read-only transaction writes nothing to the log and releases its
+   * shared locks when it commits.
+   */
+  @Test public void noLogRecords() throws Exception {
+    long records = Database.getLogFile().getTotalRecords();
+    Transaction t = new Transaction(true);
+    t.start();
+    bp.getPage(t.getId(), p0, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(t.getId(), p0));
+    assertEquals(TransactionHelp.LockMode.S,
+        TransactionHelp.getTransactionHelp().getPageLockMode(t.getId(), p0));
+    t.commit();
+    assertEquals(records, Database.getLogFile().getTotalRecords());
+    assertFalse(bp.holdsLock(t.getId(), p0));
+    assertFalse(bp.isReadOnly(t.getId()));
+  }
+
+  /**
+   * A read-only transaction cannot write.
+   */
+  @Test public void cannotWrite() throws Exception {
+    Transaction t = new Transaction(true);
+    t.start();
+    try {
+      bp.getPage(t.getId(), p0, Permissions.READ_WRITE);
+      fail("expected DbException");
+    } catch (DbException e) {
+      // expected
+    }
+    t.abort();
+    assertFalse(bp.holdsLock(t.getId(), p0));
+  }
+
+  /**
+   * Under snapshot isolation a read-only transaction takes no locks.
+   */
+  @Test public void snapshotWithoutLocks() throws Exception {
+    bp.setSnapshotIsolation(true);
+    Transaction t = new Transaction(true);
+    t.start();
+    assertTrue(bp.isSnapshot(t.getId()));
+    bp.getPage(t.getId(), p0, Permissions.READ_ONLY);
+    assertFalse(bp.holdsLock(t.getId(), p0));
+    t.commit();
+    assertFalse(bp.isSnapshot(t.getId()));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ReadOnlyTransactionTest.class);
+  }
+}
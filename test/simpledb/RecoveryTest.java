@@ -0,0 +1,233 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class RecoveryTest extends SimpleDbTestBase {
+  private LogFile log;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    log = Database.getLogFile();
+  }
+
+  private HeapFile createTable() throws Exception {
+    return Utility.createEmptyHeapFile(File.createTempFile("recovery", ".dat").getAbsolutePath(), 2);
+  }
+
+  // logs an insert of {v, v} into page 0 of hf, which is empty on disk
+  private HeapPage logInsert(TransactionId tid, HeapFile hf, int v) throws Exception {
+    HeapPageId pid = new HeapPageId(hf.getId(), 0);
+    HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+    HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+    after.insertTuple(Utility.getHeapTuple(new int[] {v, v}));
+    log.logWrite(tid, before, after);
+    return after;
+  }
+
+  private int countOnDisk(HeapFile hf) {
+    Page page = hf.readPage(new HeapPageId(hf.getId(), 0));
+    return page == null ? 0 : ((HeapPage) page).getNumSlots() - ((HeapPage) page).getNumEmptySlots();
+  }
+
+  // recovers from the log as left by the running system, as after a crash
+  private LogFile restart() throws Exception {
+    log.force();
+    LogFile restarted = new LogFile(log.logFile);
+    restarted.recover();
+    return restarted;
+  }
+
+  /**
+   * Committed changes whose pages never reached the disk are redone, each
+   * page by one of the redo workers.
+   */
+  @Test public void redoCommitted() throws Exception {
+    HeapFile[] tables = new HeapFile[5];
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    for (int i = 0; i < tables.length; i++) {
+      tables[i] = createTable();
+      logInsert(tid, tables[i], i);
+    }
+    log.logCommit(tid);
+
+    LogFile restarted = restart();
+    assertEquals(tables.length, restarted.lastRedoPages);
+    for (HeapFile hf : tables) assertEquals(1, countOnDisk(hf));
+  }
+
+  /**
+   * Records before the last checkpoint are not redone.
+   */
+  @Test public void redoStartsAtCheckpoint() throws Exception {
+    HeapFile hf = createTable();
+    for (int i = 0; i < 20; i++) {
+      TransactionId tid = new TransactionId();
+      log.logXactionBegin(tid);
+      hf.writePage(logInsert(tid, hf, i));
+      log.logCommit(tid);
+    }
+    log.logCheckpoint();
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    logInsert(tid, hf, 20);
+    log.logCommit(tid);
+
+    LogFile restarted = restart();
+    assertEquals(1, restarted.lastRedoRecords);
+  }
+
+  /**
+   * Changes of a transaction that did not commit are undone, and a second
+   * recovery finds nothing left to undo.
+   */
+  @Test public void undoLoser() throws Exception {
+    HeapFile hf = createTable();
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    hf.writePage(logInsert(tid, hf, 1));
+    assertEquals(1, countOnDisk(hf));
+
+    LogFile restarted = restart();
+    assertEquals(1, restarted.lastUndoRecords);
+    assertEquals(0, countOnDisk(hf));
+
+    restarted = new LogFile(log.logFile);
+    restarted.recover();
+    assertEquals(0, restarted.lastUndoRecords);
+    assertEquals(0, countOnDisk(hf));
+  }
+
+  /**
+   * A checkpoint does not flush pages that were never logged, and records
+   * the transactions running when it began.
+   */
+  @Test public void fuzzyCheckpoint() throws Exception {
+    HeapFile hf = createTable();
+    Transaction t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {1, 1}));
+    log.logCheckpoint();
+    assertEquals(0, countOnDisk(hf));
+
+    RandomAccessFile raf = new RandomAccessFile(log.logFile, "r");
+    long cpLoc;
+    try {
+      cpLoc = raf.readLong();
+    } finally {
+      raf.close();
+    }
+    LogFile.LogRecord cp = log.readRecordAt(cpLoc);
+    assertEquals(LogFile.CHECKPOINT_RECORD, cp.type);
+    assertTrue(cp.active.containsKey(t.getId().getId()));
+    assertTrue(cp.dirty.isEmpty());
+
+    t.commit();
+    assertEquals(1, countOnDisk(hf));
+    LogFile restarted = restart();
+    assertEquals(0, restarted.lastUndoRecords);
+    assertEquals(1, countOnDisk(hf));
+  }
+
+  /**
+   * Optimistic transactions log their commit after their updates, whether
+   * they commit through Transaction or the BufferPool, so recovery keeps
+   * their changes.
+   */
+  @Test public void optimisticCommit() throws Exception {
+    HeapFile hf = createTable();
+    BufferPool bp = Database.getBufferPool();
+    Transaction t = new Transaction();
+    t.start();
+    bp.beginOptimistic(t.getId());
+    bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {1, 1}));
+    t.commitOptimistic();
+
+    TransactionId tid = new TransactionId();
+    bp.beginOptimistic(tid);
+    bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] {2, 2}));
+    bp.commitOptimistic(tid);
+    assertEquals(2, countOnDisk(hf));
+
+    LogFile restarted = restart();
+    assertEquals(0, restarted.lastUndoRecords);
+    assertEquals(2, countOnDisk(hf));
+  }
+
+  // the records of the log, from its first one
+  private List<LogFile.LogRecord> records() throws Exception {
+    log.force();
+    long start;
+    RandomAccessFile raf = new RandomAccessFile(log.logFile, "r");
+    try {
+      raf.seek(LogFile.LONG_SIZE);
+      start = raf.readLong();
+    } finally {
+      raf.close();
+    }
+    List<LogFile.LogRecord> records = new ArrayList<LogFile.LogRecord>();
+    LogSegments segments = new LogSegments(log.logFile, LogSegments.DEFAULT_SEGMENT_SIZE);
+    try {
+      LogSegments.Reader in = segments.reader(start);
+      LogFile.LogRecord record;
+      while ((record = LogFile.readRecord(in)) != null) records.add(record);
+    } finally {
+      segments.close();
+    }
+    return records;
+  }
+
+  /**
+   * A transaction committing B+ tree and tuple-locked heap pages logs them
+   * once, before its COMMIT record, and recovery keeps its changes.
+   */
+  @Test public void nothingLoggedAfterCommit() throws Exception {
+    File f = File.createTempFile("recovery", ".dat");
+    f.deleteOnExit();
+    BTreeFile btree = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    BufferPool bp = Database.getBufferPool();
+    bp.setTupleLocking(true);
+    Transaction t = new Transaction();
+    try {
+      t.start();
+      bp.insertTuple(t.getId(), btree.getId(), Utility.getHeapTuple(new int[] {1, 1}));
+      bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {-1, -1}));
+      t.commit();
+    } finally {
+      bp.setTupleLocking(false);
+    }
+
+    boolean committed = false;
+    for (LogFile.LogRecord r : records()) {
+      if (r.tid != t.getId().getId()) continue;
+      assertFalse("record after COMMIT: " + r, committed);
+      committed = r.type == LogFile.COMMIT_RECORD;
+    }
+    assertTrue(committed);
+    LogFile restarted = restart();
+    assertEquals(0, restarted.lastUndoRecords);
+    assertEquals(11, countOnDisk(hf));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(RecoveryTest.class);
+  }
+}
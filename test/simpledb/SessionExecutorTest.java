@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SessionExecutorTest extends TestUtil.CreateHeapFile {
+  private HeapFile hf;
+  private SessionExecutor executor;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    Database.getCatalog().addTable(hf, "sessions");
+    TableStats.setTableStats("sessions", new TableStats(hf.getId(), 1));
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    executor = new SessionExecutor();
+  }
+
+  @After public void tearDown() throws Exception {
+    executor.close();
+  }
+
+  private int count() throws Exception {
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, hf.getId(), "");
+    scan.open();
+    int n = 0;
+    while (scan.hasNext()) {
+      scan.next();
+      n++;
+    }
+    scan.close();
+    Database.getBufferPool().transactionComplete(tid);
+    return n;
+  }
+
+  /**
+   * Many transactions that read the same table run concurrently.
+   */
+  @Test public void manyConcurrentTransactions() throws Exception {
+    List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < 200; i++) {
+      results.add(executor.submit(() -> {
+        Transaction t = new Transaction(true);
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+          scan.next();
+          n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+      }));
+    }
+    for (Future<Integer> result : results) {
+      assertEquals(10, (int) result.get());
+    }
+  }
+
+  /**
+   * Statements of one session run in the order they were submitted.
+   */
+  @Test public void sessionStatementsInOrder() throws Exception {
+    SessionExecutor.Session session = executor.openSession();
+    for (int i = 0; i < 3; i++) {
+      session.submit("insert into sessions values (" + i + ", " + i + ");");
+    }
+    session.submit("delete from sessions;");
+    session.submit("insert into sessions values (7, 7);").get();
+    assertEquals(1, count());
+  }
+
+  /**
+   * A query submitted on its own runs to completion.
+   */
+  @Test public void submitQuery() throws Exception {
+    TransactionId tid = new TransactionId();
+    Query query = new Query(new SeqScan(tid, hf.getId(), ""), tid);
+    executor.submit(query).get();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SessionExecutorTest.class);
+  }
+}
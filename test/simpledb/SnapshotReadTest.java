@@ -0,0 +1,129 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotReadTest extends TestUtil.CreateHeapFile {
+  private HeapFile hf;
+  private HeapPageId p0;
+  private BufferPool bp;
+  private TransactionId writer, reader;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    // one page with 10 tuples and plenty of free slots
+    hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    p0 = new HeapPageId(hf.getId(), 0);
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    bp.setSnapshotIsolation(true);
+    writer = new TransactionId();
+    reader = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    bp.transactionComplete(writer, false);
+    bp.transactionComplete(reader);
+    bp.setSnapshotIsolation(false);
+  }
+
+  private int count(TransactionId tid) throws Exception {
+    int n = 0;
+    java.util.Iterator<Tuple> it = ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).iterator();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * A snapshot reader neither waits for nor blocks a writer.
+   */
+  @Test public void noLocks() throws Exception {
+    bp.getPage(writer, p0, Permissions.READ_WRITE);
+    bp.beginSnapshot(reader);
+    assertEquals(10, count(reader));
+    assertFalse(bp.holdsLock(reader, p0));
+    bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(new int[] {-1, -1}));
+  }
+
+  /**
+   * A snapshot keeps seeing the state as of its start after a later commit,
+   * and a snapshot started after the commit sees it.
+   */
+  @Test public void seesStateAtStart() throws Exception {
+    bp.beginSnapshot(reader);
+    assertEquals(10, count(reader));
+
+    bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(new int[] {-1, -1}));
+    bp.transactionComplete(writer, true);
+    assertEquals(10, count(reader));
+    assertEquals(1, bp.getVersionStore().getNumVersions());
+
+    TransactionId later = new TransactionId();
+    bp.beginSnapshot(later);
+    assertEquals(11, count(later));
+    bp.transactionComplete(later);
+
+    // no snapshot needs the old version any more
+    bp.transactionComplete(reader);
+    assertEquals(0, bp.getVersionStore().getNumVersions());
+  }
+
+  /**
+   * Ending the oldest snapshot drops only the versions that no other
+   * running snapshot can read.
+   */
+  @Test public void pruneUpToOldestSnapshot() throws Exception {
+    bp.beginSnapshot(reader);
+    bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(new int[] {-1, -1}));
+    bp.transactionComplete(writer, true);
+
+    TransactionId middle = new TransactionId();
+    bp.beginSnapshot(middle);
+    TransactionId writer2 = new TransactionId();
+    bp.insertTuple(writer2, hf.getId(), Utility.getHeapTuple(new int[] {-2, -2}));
+    bp.transactionComplete(writer2, true);
+    assertEquals(2, bp.getVersionStore().getNumVersions());
+
+    bp.transactionComplete(reader);
+    assertEquals(1, bp.getVersionStore().getNumVersions());
+    assertEquals(11, count(middle));
+    bp.transactionComplete(middle);
+    assertEquals(0, bp.getVersionStore().getNumVersions());
+  }
+
+  /**
+   * Changes written to disk before their transaction ends stay invisible to
+   * snapshots.
+   */
+  @Test public void flushedButNotCommitted() throws Exception {
+    bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(new int[] {-1, -1}));
+    bp.flushPages(writer);
+    bp.beginSnapshot(reader);
+    assertEquals(10, count(reader));
+  }
+
+  /**
+   * Snapshot transactions cannot write.
+   */
+  @Test(expected = DbException.class) public void readOnly() throws Exception {
+    bp.beginSnapshot(reader);
+    bp.getPage(reader, p0, Permissions.READ_WRITE);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotReadTest.class);
+  }
+}
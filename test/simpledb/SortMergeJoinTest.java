@@ -0,0 +1,100 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  /**
+   * Runs of duplicate keys on both sides are joined with each other, with
+   * both children sorted in several runs and inner runs of equal keys
+   * larger than the memory budget.
+   */
+  @Test public void duplicates() throws Exception {
+    int[] outer = TestUtil.descendingKeys(1000, 8);
+    int[] inner = TestUtil.descendingKeys(700, 5);
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(p, TestUtil.createKeyedTupleList(outer),
+                                         TestUtil.createKeyedTupleList(inner), 64 * TestUtil.KEYED_TUPLE_BYTES);
+    op.open();
+    assertEquals(2, op.sortedInputs);
+    assertEquals(TestUtil.expectedJoinCount(outer, inner, Predicate.Op.EQUALS), TestUtil.countJoinResults(op, p));
+    op.rewind();
+    assertEquals(TestUtil.expectedJoinCount(outer, inner, Predicate.Op.EQUALS), TestUtil.countJoinResults(op, p));
+    op.close();
+  }
+
+  /**
+   * The range operators return what a nested-loop join does.
+   */
+  @Test public void ranges() throws Exception {
+    int[] outer = TestUtil.descendingKeys(300, 37);
+    int[] inner = TestUtil.descendingKeys(200, 53);
+    Predicate.Op[] ops = {Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                          Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ};
+    for (Predicate.Op o : ops) {
+      JoinPredicate p = new JoinPredicate(0, o, 0);
+      SortMergeJoin op = new SortMergeJoin(p, TestUtil.createKeyedTupleList(outer),
+                                         TestUtil.createKeyedTupleList(inner), 64 * TestUtil.KEYED_TUPLE_BYTES);
+      op.open();
+      assertEquals(o.toString(), TestUtil.expectedJoinCount(outer, inner, o), TestUtil.countJoinResults(op, p));
+      op.close();
+    }
+  }
+
+  /**
+   * A child ordered on its join field is merged as it is, without sorting.
+   */
+  @Test public void sortedChild() throws Exception {
+    int[] outer = TestUtil.descendingKeys(300, 25);
+    int[] inner = TestUtil.descendingKeys(500, 40);
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    OpIterator ordered = new OrderBy(0, true, TestUtil.createKeyedTupleList(inner));
+    assertTrue(SortMergeJoin.isSortedOn(ordered, 0));
+    assertFalse(SortMergeJoin.isSortedOn(ordered, 1));
+    SortMergeJoin op = new SortMergeJoin(p, TestUtil.createKeyedTupleList(outer), ordered);
+    op.open();
+    assertEquals(1, op.sortedInputs);
+    assertEquals(TestUtil.expectedJoinCount(outer, inner, Predicate.Op.EQUALS), TestUtil.countJoinResults(op, p));
+    op.close();
+  }
+
+  /**
+   * A scan of a B+ tree in the order of its key is merged as it is, and
+   * range joins read it once.
+   */
+  @Test public void btreeScan() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 3000, 500, null, tuples, 0);
+    int[] inner = new int[tuples.size()];
+    for (int i = 0; i < inner.length; i++) inner[i] = tuples.get(i).get(0);
+    int[] outer = TestUtil.descendingKeys(400, 120);
+    TransactionId tid = new TransactionId();
+    for (Predicate.Op o : new Predicate.Op[] {Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN}) {
+      JoinPredicate p = new JoinPredicate(0, o, 0);
+      SortMergeJoin op = new SortMergeJoin(p, TestUtil.createKeyedTupleList(outer),
+                                           new BTreeScan(tid, f.getId(), "t", null), 64 * TestUtil.KEYED_TUPLE_BYTES);
+      op.open();
+      assertEquals(1, op.sortedInputs);
+      assertEquals(o.toString(), TestUtil.expectedJoinCount(outer, inner, o), TestUtil.countJoinResults(op, p));
+      op.close();
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
@@ -166,6 +166,104 @@ public class TestUtil {
         }
     }
 
+    /** Size of a tuple of a relation made by createKeyedTupleList, in bytes */
+    public static final int KEYED_TUPLE_BYTES = Utility.getTupleDesc(2).getSize();
+
+    /**
+     * @return an open OpIterator over a two-column relation whose first
+     *   column holds the given keys, in this order, and whose second column
+     *   holds the position of each tuple
+     */
+    public static TupleIterator createKeyedTupleList(int[] keys) {
+        int[] values = new int[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            values[2 * i] = keys[i];
+            values[2 * i + 1] = i;
+        }
+        return createTupleList(2, values);
+    }
+
+    /**
+     * @return n keys 0, 1, ..., mod - 1, 0, 1, ... in ascending runs
+     */
+    public static int[] cyclicKeys(int n, int mod) {
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) keys[i] = i % mod;
+        return keys;
+    }
+
+    /**
+     * @return the keys of cyclicKeys(n, mod) in reverse order, so that
+     *   they need sorting
+     */
+    public static int[] descendingKeys(int n, int mod) {
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) keys[i] = (n - 1 - i) % mod;
+        return keys;
+    }
+
+    /**
+     * @return n distinct keys 0, step, 2 * step, ...
+     */
+    public static int[] steppedKeys(int n, int step) {
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) keys[i] = i * step;
+        return keys;
+    }
+
+    /**
+     * @return the number of pairs of outer and inner keys that satisfy
+     *   outer op inner, as a nested-loop join over the keys finds them
+     */
+    public static int expectedJoinCount(int[] outer, int[] inner, Predicate.Op op) {
+        int n = 0;
+        for (int o : outer) for (int i : inner) if (new IntField(o).compare(op, new IntField(i))) n++;
+        return n;
+    }
+
+    /**
+     * Counts the remaining results of an open join of two relations made
+     * by createKeyedTupleList, or of tables as wide, and checks that each
+     * one satisfies the join predicate.
+     */
+    public static int countJoinResults(OpIterator join, JoinPredicate p)
+        throws TransactionAbortedException, DbException {
+        int width1 = join.getTupleDesc().numFields() / 2;
+        int n = 0;
+        while (join.hasNext()) {
+            Tuple t = join.next();
+            assertTrue(t.getField(p.getField1()).compare(p.getOperator(), t.getField(width1 + p.getField2())));
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of tuples left in an open OpIterator, which is
+     *   exhausted afterwards
+     */
+    public static int drain(OpIterator it)
+        throws TransactionAbortedException, DbException {
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return the number of tuples of an OpIterator, which is opened and
+     *   closed again
+     */
+    public static int countTuples(OpIterator it)
+        throws TransactionAbortedException, DbException {
+        it.open();
+        int n = drain(it);
+        it.close();
+        return n;
+    }
+
     /**
      * @return a byte array containing the contents of the file 'path'
      */
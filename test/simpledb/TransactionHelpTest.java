@@ -0,0 +1,309 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class TransactionHelpTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId tid1, tid2, tid3;
+  private TransactionHelp lm;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    this.lm = TransactionHelp.getTransactionHelp();
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+    this.tid3 = new TransactionId();
+  }
+
+  @After public void tearDown() {
+    lm.reset();
+    lm.setEscalationThreshold(TransactionHelp.DEFAULT_ESCALATION_THRESHOLD);
+  }
+
+  private TestUtil.LockGrabber startGrabber(TransactionId tid, PageId pid, Permissions perm)
+      throws Exception {
+    TestUtil.LockGrabber lg = new TestUtil.LockGrabber(tid, pid, perm) {
+      public void run() {
+        try {
+          lm.getLock(this.tid, this.pid, this.perm);
+          synchronized(alock) {
+            acquired = true;
+          }
+        } catch (Exception e) {
+          synchronized(elock) {
+            error = e;
+          }
+        }
+      }
+    };
+    lg.start();
+    Thread.sleep(TIMEOUT);
+    return lg;
+  }
+
+  /**
+   * A shared request waits behind a queued exclusive request even though it
+   * is compatible with the current holder.
+   */
+  @Test public void fifoNoBarging() throws Exception {
+    lm.getLock(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber lg2 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber lg3 = startGrabber(tid3, p0, Permissions.READ_ONLY);
+    assertFalse(lg2.acquired());
+    assertFalse(lg3.acquired());
+
+    lm.releaseAllLocks(tid1);
+    lg2.join(TIMEOUT);
+    assertTrue(lg2.acquired());
+    assertFalse(lg3.acquired());
+
+    lm.releaseAllLocks(tid2);
+    lg3.join(TIMEOUT);
+    assertTrue(lg3.acquired());
+    assertNull(lg2.getError());
+    assertNull(lg3.getError());
+  }
+
+  /**
+   * An upgrade by a shared holder is granted before a new exclusive request
+   * that queued earlier.
+   */
+  @Test public void upgradeGoesFirst() throws Exception {
+    lm.getLock(tid1, p0, Permissions.READ_ONLY);
+    lm.getLock(tid2, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber lg3 = startGrabber(tid3, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber lg1 = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    assertFalse(lg3.acquired());
+    assertFalse(lg1.acquired());
+
+    lm.releasePage(tid2, p0);
+    lg1.join(TIMEOUT);
+    assertTrue(lg1.acquired());
+    assertFalse(lg3.acquired());
+    assertTrue(lm.holdsLock(tid1, p0));
+
+    lm.releaseAllLocks(tid1);
+    lg3.join(TIMEOUT);
+    assertTrue(lg3.acquired());
+    assertFalse(lm.holdsLock(tid1, p0));
+  }
+
+  /**
+   * releaseAllLocks drops every lock of a transaction.
+   */
+  @Test public void releaseAll() throws Exception {
+    PageId p1 = new HeapPageId(empty.getId(), 1);
+    lm.getLock(tid1, p0, Permissions.READ_WRITE);
+    lm.getLock(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(2, lm.getLockedPages(tid1).size());
+
+    lm.releaseAllLocks(tid1);
+    assertFalse(lm.holdsLock(tid1, p0));
+    assertFalse(lm.holdsLock(tid1, p1));
+    lm.getLock(tid2, p0, Permissions.READ_WRITE);
+    lm.getLock(tid2, p1, Permissions.READ_WRITE);
+  }
+
+  /**
+   * A deadlock is broken right away by aborting the youngest transaction,
+   * while the older one keeps waiting and then gets its lock.
+   */
+  @Test public void deadlockAbortsYoungest() throws Exception {
+    PageId p1 = new HeapPageId(empty.getId(), 1);
+    long aborts = lm.getDeadlockAborts();
+    lm.getLock(tid1, p0, Permissions.READ_WRITE);
+    lm.getLock(tid2, p1, Permissions.READ_WRITE);
+
+    TestUtil.LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    long start = System.currentTimeMillis();
+    TestUtil.LockGrabber lg2 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    lg2.join(1000);
+    lg1.join(1000);
+
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertTrue(lg2.getError() instanceof TransactionAbortedException);
+    assertTrue(lg1.acquired());
+    assertNull(lg1.getError());
+    assertEquals(aborts + 1, lm.getDeadlockAborts());
+    assertTrue(lm.getDetectionRuns() > 0);
+  }
+
+  /**
+   * A transaction that waits for a long time without a deadlock is not
+   * aborted.
+   */
+  @Test public void longWaitIsNotAborted() throws Exception {
+    lm.getLock(tid1, p0, Permissions.READ_WRITE);
+    Thread.sleep(1100);
+    TestUtil.LockGrabber lg2 = startGrabber(tid2, p0, Permissions.READ_ONLY);
+    Thread.sleep(300);
+    assertFalse(lg2.acquired());
+    assertNull(lg2.getError());
+
+    lm.releaseAllLocks(tid1);
+    lg2.join(TIMEOUT);
+    assertTrue(lg2.acquired());
+  }
+
+  /**
+   * Page locks take intention locks on the table, which conflict with a
+   * table lock but not with each other.
+   */
+  @Test public void intentionLocks() throws Exception {
+    PageId p1 = new HeapPageId(empty.getId(), 1);
+    lm.getLock(tid1, p0, Permissions.READ_ONLY);
+    lm.getLock(tid2, p1, Permissions.READ_WRITE);
+    assertEquals(TransactionHelp.LockMode.IS, lm.getTableLockMode(tid1, empty.getId()));
+    assertEquals(TransactionHelp.LockMode.IX, lm.getTableLockMode(tid2, empty.getId()));
+
+    TestUtil.LockGrabber lg3 = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY) {
+      public void run() {
+        try {
+          lm.lockTable(this.tid, empty.getId(), this.perm);
+          synchronized(alock) {
+            acquired = true;
+          }
+        } catch (Exception e) {
+          synchronized(elock) {
+            error = e;
+          }
+        }
+      }
+    };
+    lg3.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(lg3.acquired());
+
+    lm.releaseAllLocks(tid2);
+    lg3.join(TIMEOUT);
+    assertTrue(lg3.acquired());
+    assertEquals(TransactionHelp.LockMode.S, lm.getTableLockMode(tid3, empty.getId()));
+    assertTrue(lm.holdsLock(tid3, p1));
+    assertTrue(lm.getLockedPages(tid3).isEmpty());
+  }
+
+  /**
+   * A transaction holding more page locks than the threshold escalates to a
+   * table lock and drops the page locks it covers.
+   */
+  @Test public void escalation() throws Exception {
+    lm.setEscalationThreshold(3);
+    long escalations = lm.getEscalations();
+    for (int i = 0; i < 4; i++) {
+      lm.getLock(tid1, new HeapPageId(empty.getId(), i), Permissions.READ_ONLY);
+    }
+    assertEquals(escalations + 1, lm.getEscalations());
+    assertEquals(TransactionHelp.LockMode.S, lm.getTableLockMode(tid1, empty.getId()));
+    assertTrue(lm.getLockedPages(tid1).isEmpty());
+    assertTrue(lm.holdsLock(tid1, new HeapPageId(empty.getId(), 10)));
+
+    // 写入需要IX锁，与表级S锁冲突
+    TestUtil.LockGrabber lg2 = startGrabber(tid2, new HeapPageId(empty.getId(), 10), Permissions.READ_WRITE);
+    assertFalse(lg2.acquired());
+    lm.releaseAllLocks(tid1);
+    lg2.join(TIMEOUT);
+    assertTrue(lg2.acquired());
+  }
+
+  /**
+   * Escalation never waits: it is skipped while another transaction holds
+   * a conflicting intention lock.
+   */
+  @Test public void escalationDoesNotWait() throws Exception {
+    lm.setEscalationThreshold(3);
+    lm.getLock(tid2, new HeapPageId(empty.getId(), 10), Permissions.READ_WRITE);
+    for (int i = 0; i < 4; i++) {
+      lm.getLock(tid1, new HeapPageId(empty.getId(), i), Permissions.READ_ONLY);
+    }
+    assertEquals(TransactionHelp.LockMode.IS, lm.getTableLockMode(tid1, empty.getId()));
+    assertEquals(4, lm.getLockedPages(tid1).size());
+  }
+
+  /**
+   * A scan of a table with more pages than the threshold takes one table
+   * S lock instead of a lock per page.
+   */
+  @Test public void scanLocksTable() throws Exception {
+    HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+    lm.setEscalationThreshold(2);
+    SeqScan scan = new SeqScan(tid1, hf.getId());
+    scan.open();
+    int count = 0;
+    while (scan.hasNext()) {
+      scan.next();
+      count++;
+    }
+    scan.close();
+    assertEquals(504 * 3, count);
+    assertEquals(TransactionHelp.LockMode.S, lm.getTableLockMode(tid1, hf.getId()));
+    assertTrue(lm.getLockedPages(tid1).isEmpty());
+  }
+
+  /**
+   * Many threads locking private and shared pages concurrently never see
+   * two writers on a page, and leave no locks behind.
+   */
+  @Test public void concurrentLocking() throws Exception {
+    final int threads = 8, rounds = 2000, shared = 4;
+    final java.util.concurrent.atomic.AtomicInteger[] writers =
+        new java.util.concurrent.atomic.AtomicInteger[shared];
+    for (int i = 0; i < shared; i++) writers[i] = new java.util.concurrent.atomic.AtomicInteger();
+    final java.util.concurrent.atomic.AtomicReference<Throwable> failure =
+        new java.util.concurrent.atomic.AtomicReference<>();
+    final TransactionId[] last = new TransactionId[threads];
+
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      workers[t] = new Thread(() -> {
+        try {
+          for (int r = 0; r < rounds; r++) {
+            TransactionId tid = new TransactionId();
+            last[id] = tid;
+            PageId mine = new HeapPageId(empty.getId(), 100 + id * rounds + r);
+            lm.getLock(tid, mine, Permissions.READ_WRITE);
+            assertTrue(lm.holdsLock(tid, mine));
+            // 共享页面只加写锁，并且按固定顺序只加一个，不会死锁
+            int s = r % shared;
+            PageId sp = new HeapPageId(empty.getId(), s);
+            lm.getLock(tid, sp, Permissions.READ_WRITE);
+            if (writers[s].incrementAndGet() != 1) throw new AssertionError("two writers on page " + s);
+            writers[s].decrementAndGet();
+            lm.releaseAllLocks(tid);
+          }
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      });
+      workers[t].start();
+    }
+    for (Thread w : workers) w.join();
+
+    assertNull(failure.get());
+    for (int t = 0; t < threads; t++) {
+      assertTrue(lm.getLockedPages(last[t]).isEmpty());
+    }
+    for (int s = 0; s < shared; s++) {
+      lm.getLock(tid1, new HeapPageId(empty.getId(), s), Permissions.READ_WRITE);
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TransactionHelpTest.class);
+  }
+}
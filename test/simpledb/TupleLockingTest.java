@@ -0,0 +1,192 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class TupleLockingTest extends TestUtil.CreateHeapFile {
+  private HeapFile hf;
+  private HeapPageId p0;
+  private BufferPool bp;
+  private TransactionId tid1, tid2;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 100;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    // one page with 10 tuples and plenty of free slots
+    hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    p0 = new HeapPageId(hf.getId(), 0);
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    bp.setTupleLocking(true);
+    tid1 = new TransactionId();
+    tid2 = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    bp.transactionComplete(tid1, false);
+    bp.transactionComplete(tid2, false);
+    bp.setTupleLocking(false);
+  }
+
+  /** Runs a tuple operation in its own thread, like TestUtil.LockGrabber */
+  private class Worker extends Thread {
+    private final TransactionId tid;
+    private final Tuple tuple;
+    private final boolean insert;
+    private volatile boolean done = false;
+    private volatile Exception error = null;
+
+    Worker(TransactionId tid, Tuple tuple, boolean insert) {
+      this.tid = tid;
+      this.tuple = tuple;
+      this.insert = insert;
+    }
+
+    public void run() {
+      try {
+        if (insert) bp.insertTuple(tid, hf.getId(), tuple);
+        else bp.deleteTuple(tid, tuple);
+        done = true;
+      } catch (Exception e) {
+        error = e;
+      }
+    }
+  }
+
+  private Worker start(TransactionId tid, Tuple tuple, boolean insert) throws Exception {
+    Worker w = new Worker(tid, tuple, insert);
+    w.start();
+    Thread.sleep(TIMEOUT);
+    return w;
+  }
+
+  private static Tuple tuple(int value) {
+    return Utility.getHeapTuple(new int[] {value, value});
+  }
+
+  /** @return the values of the first column of p0, as stored on disk */
+  private java.util.List<Integer> onDisk() {
+    java.util.List<Integer> values = new java.util.ArrayList<>();
+    java.util.Iterator<Tuple> it = ((HeapPage) hf.readPage(p0)).iterator();
+    while (it.hasNext()) values.add(((IntField) it.next().getField(0)).getValue());
+    return values;
+  }
+
+  private Tuple firstTuple() throws Exception {
+    TransactionId tid = new TransactionId();
+    Tuple t = ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).iterator().next();
+    bp.transactionComplete(tid);
+    return t;
+  }
+
+  /**
+   * Two transactions insert into the same page without blocking each other,
+   * and each one's commit or abort only affects its own tuple.
+   */
+  @Test public void concurrentInserts() throws Exception {
+    Tuple t1 = tuple(-1), t2 = tuple(-2);
+    bp.insertTuple(tid1, hf.getId(), t1);
+    Worker w2 = start(tid2, t2, true);
+    w2.join(TIMEOUT);
+    assertTrue(w2.done);
+    assertEquals(p0, t1.getRecordId().getPageId());
+    assertEquals(p0, t2.getRecordId().getPageId());
+
+    bp.transactionComplete(tid1, true);
+    java.util.List<Integer> disk = onDisk();
+    assertEquals(11, disk.size());
+    assertTrue(disk.contains(-1));
+    assertFalse(disk.contains(-2));
+
+    bp.transactionComplete(tid2, false);
+    HeapPage page = (HeapPage) bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertEquals(page.getNumSlots() - 11, page.getNumEmptySlots());
+    assertNull(page.isDirty());
+  }
+
+  /**
+   * A reader of the whole page waits until tuple writers are done.
+   */
+  @Test public void readerWaitsForWriters() throws Exception {
+    bp.insertTuple(tid1, hf.getId(), tuple(-1));
+    TestUtil.LockGrabber lg = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_ONLY);
+    lg.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(lg.acquired());
+
+    bp.transactionComplete(tid1, true);
+    lg.join(TIMEOUT);
+    assertTrue(lg.acquired());
+  }
+
+  /**
+   * Deleting a tuple another transaction deleted waits for it, and an abort
+   * puts the tuple back in place.
+   */
+  @Test public void deleteWaitsForTupleLock() throws Exception {
+    Tuple t = firstTuple();
+    RecordId rid = t.getRecordId();
+    bp.deleteTuple(tid1, t);
+    Worker w2 = start(tid2, t, false);
+    assertFalse(w2.done);
+
+    bp.transactionComplete(tid1, false);
+    w2.join(TIMEOUT);
+    assertTrue(w2.done);
+    assertNull(w2.error);
+    assertEquals(rid, t.getRecordId());
+
+    bp.transactionComplete(tid2, true);
+    assertEquals(9, onDisk().size());
+  }
+
+  /**
+   * A slot freed by an uncommitted delete is not reused by another
+   * transaction, so the delete can still be undone.
+   */
+  @Test public void insertSkipsLockedSlot() throws Exception {
+    Tuple t = firstTuple();
+    int slot = t.getRecordId().getTupleNumber();
+    bp.deleteTuple(tid1, t);
+    Tuple t2 = tuple(-2);
+    bp.insertTuple(tid2, hf.getId(), t2);
+    assertTrue(slot != t2.getRecordId().getTupleNumber());
+
+    bp.transactionComplete(tid1, false);
+    bp.transactionComplete(tid2, true);
+    java.util.List<Integer> disk = onDisk();
+    assertEquals(11, disk.size());
+    assertTrue(disk.contains(((IntField) t.getField(0)).getValue()));
+  }
+
+  /**
+   * Once a transaction has flushed its pages to commit, another transaction
+   * flushing the same page keeps its changes.
+   */
+  @Test public void flushAfterCommitFlush() throws Exception {
+    bp.insertTuple(tid1, hf.getId(), tuple(-1));
+    bp.insertTuple(tid2, hf.getId(), tuple(-2));
+    bp.flushPages(tid1); // as Transaction does before logging COMMIT
+    bp.flushPages(tid2);
+    java.util.List<Integer> disk = onDisk();
+    assertTrue(disk.contains(-1));
+    assertTrue(disk.contains(-2));
+    bp.transactionComplete(tid1, true);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleLockingTest.class);
+  }
+}